@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deadline and cancellation signal of a request, carried to the extractor
+ * in DjatokaDecodeParam. A token is cancelled explicitly (e.g. once the 
+ * client is known to have gone away) or when its deadline passes. 
+ * Extractors register a callback to abort work in progress, such as 
+ * destroying a kdu_expand process, and check the token between steps.
+ * @author agent
+ *
+ */
+public class CancellationToken {
+	private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "djatoka-deadline");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private static final AtomicInteger disposed = new AtomicInteger();
+	private final CopyOnWriteArrayList<Runnable> callbacks = new CopyOnWriteArrayList<Runnable>();
+	private volatile long deadline = 0;
+	private volatile String reason = null;
+	private ScheduledFuture<?> expiry;
+
+	/**
+	 * Creates a token without a deadline
+	 */
+	public CancellationToken() {}
+
+	/**
+	 * Sets the deadline to timeout milliseconds from now, unless the token 
+	 * already has an earlier deadline.
+	 * @param timeout milliseconds until the token is cancelled
+	 */
+	public synchronized void setTimeout(long timeout) {
+		long d = System.currentTimeMillis() + timeout;
+		if (timeout <= 0 || (deadline > 0 && deadline <= d) || reason != null)
+			return;
+		deadline = d;
+		if (expiry != null)
+			expiry.cancel(false);
+		expiry = timer.schedule(new Runnable() {
+			public void run() {
+				cancel("Deadline exceeded");
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the deadline, in milliseconds since the epoch
+	 * @return the deadline, or 0 if none is set
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Returns the milliseconds remaining until the deadline
+	 * @return the milliseconds remaining, or Long.MAX_VALUE if no deadline is set
+	 */
+	public long getRemaining() {
+		long d = deadline;
+		return (d == 0) ? Long.MAX_VALUE : Math.max(0, d - System.currentTimeMillis());
+	}
+
+	/**
+	 * Cancels the token, running the registered callbacks
+	 * @param reason description of why the request was cancelled
+	 */
+	public void cancel(String reason) {
+		synchronized (this) {
+			if (this.reason != null)
+				return;
+			this.reason = reason;
+		}
+		for (Runnable r : callbacks) {
+			try {
+				r.run();
+			} catch (RuntimeException e) {
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the token was cancelled or its deadline has passed
+	 * @return true if the work should be abandoned
+	 */
+	public boolean isCancelled() {
+		return reason != null || (deadline > 0 && System.currentTimeMillis() >= deadline);
+	}
+
+	/**
+	 * Throws a DjatokaCancelledException if the token was cancelled
+	 * @throws DjatokaCancelledException if the work should be abandoned
+	 */
+	public void check() throws DjatokaCancelledException {
+		if (isCancelled())
+			throw new DjatokaCancelledException((reason != null) ? reason : "Deadline exceeded");
+	}
+
+	/**
+	 * Registers a callback run when the token is cancelled; it is run 
+	 * immediately if the token is already cancelled. Callbacks must be 
+	 * idempotent, and removed once the work they abort has completed.
+	 * @param callback aborts the work in progress
+	 */
+	public void addCallback(Runnable callback) {
+		callbacks.add(callback);
+		if (reason != null)
+			callback.run();
+		else if (isCancelled())
+			cancel("Deadline exceeded");
+	}
+
+	/**
+	 * Removes a callback registered with addCallback()
+	 * @param callback callback to be removed
+	 */
+	public void removeCallback(Runnable callback) {
+		callbacks.remove(callback);
+	}
+
+	/**
+	 * Starts a wait of the current thread (e.g. for a decode slot or an 
+	 * identical request in progress) which is interrupted if the token is 
+	 * cancelled. The returned Waiter must be ended with done().
+	 * @return the Waiter of the current thread
+	 */
+	public Waiter startWait() {
+		Waiter w = new Waiter(this, Thread.currentThread());
+		addCallback(w);
+		return w;
+	}
+
+	/**
+	 * Releases the deadline timer once the request has completed
+	 */
+	public synchronized void dispose() {
+		callbacks.clear();
+		if (expiry != null) {
+			expiry.cancel(false);
+			expiry = null;
+			// Cancelled timer tasks are only dropped from the queue by purge()
+			if (disposed.incrementAndGet() % 1000 == 0)
+				timer.purge();
+		}
+	}
+
+	/**
+	 * Interrupts a waiting thread when its token is cancelled, but not once 
+	 * it has stopped waiting.
+	 */
+	public static final class Waiter implements Runnable {
+		private final CancellationToken token;
+		private final Thread thread;
+		private boolean waiting = true;
+		private volatile boolean interrupted = false;
+
+		Waiter(CancellationToken token, Thread thread) {
+			this.token = token;
+			this.thread = thread;
+		}
+
+		public synchronized void run() {
+			if (waiting) {
+				interrupted = true;
+				thread.interrupt();
+			}
+		}
+
+		/**
+		 * Returns true if the wait was interrupted because the token was cancelled
+		 * @return true if the token interrupted the wait
+		 */
+		public boolean isInterrupted() {
+			return interrupted;
+		}
+
+		/**
+		 * Ends the wait; called by the waiting thread. Clears an interrupt 
+		 * delivered by the token which the wait did not consume.
+		 */
+		public void done() {
+			token.removeCallback(this);
+			synchronized (this) {
+				if (!waiting)
+					return;
+				waiting = false;
+				if (interrupted)
+					Thread.interrupted();
+			}
+		}
+	}
+}
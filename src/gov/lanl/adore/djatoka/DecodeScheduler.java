@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka;
+
+import gov.lanl.adore.djatoka.util.ImageRecord;
+
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of concurrent decodes performed by an IExtract 
+ * implementation. Requests beyond the concurrency limit wait in a bounded
+ * queue, in arrival order, for up to maxWait milliseconds. A request is 
+ * rejected with a DjatokaOverloadException, rather than queued, if the 
+ * queue is full or the estimated wait (from the observed decode time) 
+ * exceeds maxWait, so that under overload excess requests fail quickly 
+ * while admitted requests complete in bounded time.
+ * <p>
+ * Metadata and XML box requests are not limited.
+ * @author agent
+ *
+ */
+public class DecodeScheduler implements IExtract {
+	// Weight of the newest observation in the decode time average, as 1/n
+	private static final int SMOOTHING = 16;
+	private final IExtract impl;
+	private final Semaphore permits;
+	private final int maxConcurrent;
+	private final int maxQueue;
+	private final long maxWait;
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong waited = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private volatile long maxWaitNanos = 0;
+	private volatile long decodeNanos = 0;
+
+	/**
+	 * Creates a new scheduler around the provided extraction implementation
+	 * @param impl extraction implementation performing the decodes
+	 * @param maxConcurrent maximum number of concurrent decodes
+	 * @param maxQueue maximum number of requests waiting for a decode slot
+	 * @param maxWait maximum milliseconds a request waits for a decode slot
+	 */
+	public DecodeScheduler(IExtract impl, int maxConcurrent, int maxQueue, long maxWait) {
+		if (maxConcurrent < 1 || maxQueue < 0 || maxWait < 0)
+			throw new IllegalArgumentException();
+		this.impl = impl;
+		this.maxConcurrent = maxConcurrent;
+		this.maxQueue = maxQueue;
+		this.maxWait = maxWait;
+		this.permits = new Semaphore(maxConcurrent, true);
+	}
+
+	public BufferedImage process(InputStream input, DjatokaDecodeParam params) throws DjatokaException {
+		long start = acquire(params.getCancellation());
+		try {
+			return impl.process(input, params);
+		} finally {
+			release(start);
+		}
+	}
+
+	public BufferedImage process(String input, DjatokaDecodeParam params) throws DjatokaException {
+		long start = acquire(params.getCancellation());
+		try {
+			return impl.process(input, params);
+		} finally {
+			release(start);
+		}
+	}
+
+	public BufferedImage process(ImageRecord input, DjatokaDecodeParam params) throws DjatokaException {
+		long start = acquire(params.getCancellation());
+		try {
+			return impl.process(input, params);
+		} finally {
+			release(start);
+		}
+	}
+
+	public List<BufferedImage> processBatch(ImageRecord input, List<DjatokaDecodeParam> params) throws DjatokaException {
+		// A batch holds a single decode slot
+		long start = acquire(params.isEmpty() ? null : params.get(0).getCancellation());
+		try {
+			return impl.processBatch(input, params);
+		} finally {
+			release(start);
+		}
+	}
+
+	public ImageRecord getMetadata(ImageRecord input) throws DjatokaException {
+		return impl.getMetadata(input);
+	}
+
+	public String[] getXMLBox(ImageRecord input) throws DjatokaException {
+		return impl.getXMLBox(input);
+	}
+
+	/**
+	 * Returns the extraction implementation performing the decodes
+	 * @return the extraction implementation performing the decodes
+	 */
+	public IExtract getImpl() {
+		return impl;
+	}
+
+	/**
+	 * Returns the number of requests waiting for a decode slot
+	 * @return the number of requests waiting for a decode slot
+	 */
+	public int getQueueDepth() {
+		return queued.get();
+	}
+
+	/**
+	 * Returns the number of decodes in progress
+	 * @return the number of decodes in progress
+	 */
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	public long getAdmittedCount() {
+		return admitted.get();
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * Returns the mean time, in milliseconds, requests which had to queue 
+	 * waited for a decode slot
+	 * @return the mean queue wait in milliseconds
+	 */
+	public long getMeanWait() {
+		long n = waited.get();
+		return (n == 0) ? 0 : waitNanos.get() / n / 1000000;
+	}
+
+	/**
+	 * Returns the longest time, in milliseconds, a request waited for a 
+	 * decode slot
+	 * @return the longest queue wait in milliseconds
+	 */
+	public long getMaxWait() {
+		return maxWaitNanos / 1000000;
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("{");
+		sb.append("\"active\": \"" + active.get() + "\", ");
+		sb.append("\"maxConcurrent\": \"" + maxConcurrent + "\", ");
+		sb.append("\"queued\": \"" + queued.get() + "\", ");
+		sb.append("\"maxQueue\": \"" + maxQueue + "\", ");
+		sb.append("\"admitted\": \"" + admitted.get() + "\", ");
+		sb.append("\"rejected\": \"" + rejected.get() + "\", ");
+		sb.append("\"meanWaitMillis\": \"" + getMeanWait() + "\", ");
+		sb.append("\"maxWaitMillis\": \"" + getMaxWait() + "\", ");
+		sb.append("\"decodeMillis\": \"" + (decodeNanos / 1000000) + "\" ");
+		sb.append("}");
+		return sb.toString();
+	}
+
+	/**
+	 * Waits for a decode slot, or rejects the request if it cannot be 
+	 * admitted within maxWait or before its deadline. A request whose token is cancelled while it
+	 * waits gives up its place in the queue.
+	 * @param token cancellation token of the request, may be null
+	 * @return time the decode slot was acquired, in nanoseconds
+	 */
+	private long acquire(CancellationToken token) throws DjatokaException {
+		if (token != null)
+			token.check();
+		long start = System.nanoTime();
+		// Requests already waiting are served first
+		if (queued.get() > 0 || !permits.tryAcquire()) {
+			int depth = queued.get();
+			long limit = (token != null) ? Math.min(maxWait, token.getRemaining()) : maxWait;
+			// Estimated time until a slot frees up for this request
+			long estimate = (depth + 1) * decodeNanos / maxConcurrent;
+			if (depth >= maxQueue)
+				throw reject("Decode queue is full (" + depth + " waiting)", estimate);
+			// A request which would reach its deadline in the queue is rejected now
+			if (estimate > limit * 1000000L)
+				throw reject("Estimated decode wait exceeds " + limit + " ms (" + depth + " waiting)", estimate);
+			queued.incrementAndGet();
+			boolean acquired = false;
+			CancellationToken.Waiter waiter = (token != null) ? token.startWait() : null;
+			try {
+				acquired = permits.tryAcquire(limit, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				if (waiter == null || !waiter.isInterrupted())
+					Thread.currentThread().interrupt();
+			} finally {
+				queued.decrementAndGet();
+				if (waiter != null)
+					waiter.done();
+			}
+			if (!acquired && token != null)
+				token.check();
+			if (!acquired)
+				throw reject("No decode slot available after " + maxWait + " ms", estimate);
+			long w = System.nanoTime() - start;
+			waited.incrementAndGet();
+			waitNanos.addAndGet(w);
+			if (w > maxWaitNanos)
+				maxWaitNanos = w;
+		}
+		admitted.incrementAndGet();
+		active.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	private void release(long start) {
+		active.decrementAndGet();
+		permits.release();
+		long d = System.nanoTime() - start;
+		decodeNanos = (decodeNanos == 0) ? d : decodeNanos + (d - decodeNanos) / SMOOTHING;
+	}
+
+	private DjatokaOverloadException reject(String message, long estimate) {
+		rejected.incrementAndGet();
+		int retryAfter = (int) Math.max(1, (estimate + 999999999L) / 1000000000L);
+		return new DjatokaOverloadException(message, retryAfter);
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka;
+
+/**
+ * Thrown when a decode is abandoned because its request was cancelled or
+ * its deadline passed.
+ * @author agent
+ *
+ */
+public class DjatokaCancelledException extends DjatokaException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DjatokaCancelledException(String message) {
+        super(message);
+    }
+
+}
@@ -52,7 +52,11 @@ public class DjatokaDecodeParam implements DjatokaConstants {
 	
 	private int compLayer = 0;
 	
+	private int qualityLayers = 0;
+	
 	private ITransformPlugIn transform;
+	
+	private CancellationToken cancellation;
 
 	public DjatokaDecodeParam() {}
 
@@ -144,6 +148,23 @@ public class DjatokaDecodeParam implements DjatokaConstants {
 		this.transform = transform;
 	}
 
+	/**
+	 * Returns the deadline and cancellation signal of the request
+	 * @return the cancellation token, or null if the decode cannot be cancelled
+	 */
+	public CancellationToken getCancellation() {
+		return cancellation;
+	}
+
+	/**
+	 * Sets the deadline and cancellation signal of the request; extractors
+	 * abandon the decode once the token is cancelled.
+	 * @param cancellation the cancellation token of the request
+	 */
+	public void setCancellation(CancellationToken cancellation) {
+		this.cancellation = cancellation;
+	}
+
 	public void setCompositingLayer(int compLayer) {
 		this.compLayer = compLayer;
 	}
@@ -152,6 +173,24 @@ public class DjatokaDecodeParam implements DjatokaConstants {
 		return compLayer;
 	}
 
+	/**
+	 * Returns the maximum number of quality layers to be decoded
+	 * @return the number of quality layers to decode, or 0 to decode all layers
+	 */
+	public int getQualityLayers() {
+		return qualityLayers;
+	}
+
+	/**
+	 * Sets the maximum number of quality layers to be decoded. Decoding fewer
+	 * layers reduces entropy decoding work at the cost of image quality, 
+	 * which is rarely visible in reduced resolution previews.
+	 * @param qualityLayers the number of quality layers to decode, or 0 to decode all layers
+	 */
+	public void setQualityLayers(int qualityLayers) {
+		this.qualityLayers = Math.max(0, qualityLayers);
+	}
+
 	/**
 	 * Gets a positive scaling factor (e.g. 0.85643), where 1.0 is the 
 	 * current size. Value must be greater than 0 and less than 2. 
@@ -202,7 +241,8 @@ public class DjatokaDecodeParam implements DjatokaConstants {
 			sb.append("\"scalingDims\": \"" + scalingDims[0] + "\", ");
 		else if (scalingDims != null && scalingDims.length == 2) 
 			sb.append("\"scalingDims\": \"" + scalingDims[0] + "," + scalingDims[1] + "\", ");
-		sb.append("\"compLayer\": \"" + compLayer + "\" ");
+		sb.append("\"compLayer\": \"" + compLayer + "\", ");
+		sb.append("\"qualityLayers\": \"" + qualityLayers + "\" ");
 		sb.append("}");
 		return sb.toString();
 	}
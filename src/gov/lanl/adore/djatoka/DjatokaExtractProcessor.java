@@ -26,8 +26,10 @@ package gov.lanl.adore.djatoka;
 import gov.lanl.adore.djatoka.io.FormatFactory;
 import gov.lanl.adore.djatoka.io.FormatWriterParams;
 import gov.lanl.adore.djatoka.io.IWriter;
+import gov.lanl.adore.djatoka.util.DecodeParamNormalizer;
 import gov.lanl.adore.djatoka.util.IOUtils;
 import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
+import gov.lanl.adore.djatoka.util.ImageRecord;
 
 import java.awt.image.BufferedImage;
 import java.io.BufferedOutputStream;
@@ -37,6 +39,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
@@ -154,7 +158,10 @@ public class DjatokaExtractProcessor {
 			}
 		}
 
+		checkCancelled(params);
+		params = plan(input, params);
 		BufferedImage bi = extractImpl.process(input, params);
+		checkCancelled(params);
 		if (bi != null) {
 			if (params.getScalingFactor() != 1.0 || params.getScalingDimensions() != null)
 				bi = applyScaling(bi, params);
@@ -202,7 +209,10 @@ public class DjatokaExtractProcessor {
 			}
 		}
 
+		checkCancelled(params);
+		params = plan(input, params);
 		BufferedImage bi = extractImpl.process(input, params);
+		checkCancelled(params);
 		if (bi != null) {
 			if (params.getScalingFactor() != 1.0 || params.getScalingDimensions() != null)
 				bi = applyScaling(bi, params);
@@ -215,6 +225,61 @@ public class DjatokaExtractProcessor {
 			in.delete();
 	}
 
+	/**
+	 * Extract several regions or resolution levels from the same JPEG 2000 
+	 * image, opening the image once. Each region is written to the 
+	 * OutputStream at the same index in os as its parameters in params.
+	 * @param input ImageRecord wrapper containing file reference, inputstream, etc.
+	 * @param os OutputStream to serialize each formatted output image to.
+	 * @param params DjatokaDecodeParam instance for each region to be extracted.
+	 * @param fmtId mimetype identifier of output file format (e.g. "image/jpeg")
+	 * @throws DjatokaException
+	 */
+	public void extractImages(ImageRecord input, List<OutputStream> os,
+			List<DjatokaDecodeParam> params, String fmtId) throws DjatokaException {
+		if (os.size() != params.size())
+			throw new DjatokaException("Expected " + params.size() + " OutputStreams, found " + os.size());
+		IWriter w = fmtFactory.getWriter(fmtId);
+		for (DjatokaDecodeParam p : params)
+			checkCancelled(p);
+		params = plan(input, params);
+		List<BufferedImage> images = extractImpl.processBatch(input, params);
+		for (int i = 0; i < images.size(); i++) {
+			BufferedImage bi = images.get(i);
+			DjatokaDecodeParam p = params.get(i);
+			checkCancelled(p);
+			if (bi != null) {
+				if (p.getScalingFactor() != 1.0 || p.getScalingDimensions() != null)
+					bi = applyScaling(bi, p);
+				if (p.getTransform() != null)
+					bi = p.getTransform().run(bi);
+				w.write(bi, os.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Applies the scaling and transform of the decode parameters to an image
+	 * which was not decoded by this processor (e.g. derived from previously 
+	 * extracted tiles) and writes it to the provided OutputStream.
+	 * @param bi pixels of the requested region at the requested level
+	 * @param os OutputStream to serialize the image to
+	 * @param params DjatokaDecodeParams containing scaling and transform properties
+	 * @param fmtId mimetype identifier of output file format
+	 * @throws DjatokaException
+	 */
+	public void writeImage(BufferedImage bi, OutputStream os,
+			DjatokaDecodeParam params, String fmtId) throws DjatokaException {
+		IWriter w = fmtFactory.getWriter(fmtId);
+		checkCancelled(params);
+		if (params.getScalingFactor() != 1.0 || params.getScalingDimensions() != null)
+			bi = applyScaling(bi, params);
+		if (params.getTransform() != null)
+			bi = params.getTransform().run(bi);
+		w.write(bi, os);
+	}
+
+
 	/**
 	 * Extract region or resolution level from JPEG 2000 image file.
 	 * @param input input absolute file path for input file.
@@ -225,7 +290,9 @@ public class DjatokaExtractProcessor {
 	 */
 	public void extractImage(InputStream input, OutputStream os,
 			DjatokaDecodeParam params, IWriter w) throws DjatokaException {
+		checkCancelled(params);
 		BufferedImage bi = extractImpl.process(input, params);
+		checkCancelled(params);
 		if (bi != null) {
 			if (params.getScalingFactor() != 1.0 || params.getScalingDimensions() != null)
 				bi = applyScaling(bi, params);
@@ -235,6 +302,60 @@ public class DjatokaExtractProcessor {
 		}
 	}
 	
+	/**
+	 * Returns the canonical form of scaled requests, so the image is decoded
+	 * at the coarsest resolution level covering the output size rather than
+	 * at the requested level and reduced by applyScaling(). Requests without
+	 * scaling, or which cannot be resolved, are returned as is.
+	 */
+	private DjatokaDecodeParam plan(String input, DjatokaDecodeParam params) {
+		if (params.getScalingFactor() == 1.0 && params.getScalingDimensions() == null)
+			return params;
+		try {
+			ImageRecord r = extractImpl.getMetadata(new ImageRecord(input));
+			DjatokaDecodeParam c = DecodeParamNormalizer.normalize(r, params);
+			return (c != null) ? c : params;
+		} catch (DjatokaException e) {
+			logger.debug("Unable to plan decode of " + input + ": " + e.getMessage());
+			return params;
+		}
+	}
+
+	/**
+	 * Returns the canonical form of each scaled request of a batch, see 
+	 * plan(String, DjatokaDecodeParam). Requests of a stream are returned
+	 * as is.
+	 */
+	private List<DjatokaDecodeParam> plan(ImageRecord input, List<DjatokaDecodeParam> params) {
+		if (input.getImageFile() == null)
+			return params;
+		ArrayList<DjatokaDecodeParam> planned = new ArrayList<DjatokaDecodeParam>(params.size());
+		ImageRecord r = null;
+		for (DjatokaDecodeParam p : params) {
+			DjatokaDecodeParam c = null;
+			if (p.getScalingFactor() != 1.0 || p.getScalingDimensions() != null) {
+				try {
+					if (r == null)
+						r = extractImpl.getMetadata(new ImageRecord(input.getImageFile()));
+					c = DecodeParamNormalizer.normalize(r, p);
+				} catch (DjatokaException e) {
+					logger.debug("Unable to plan decode of " + input.getImageFile() + ": " + e.getMessage());
+				}
+			}
+			planned.add((c != null) ? c : p);
+		}
+		return planned;
+	}
+
+	/**
+	 * Throws a DjatokaCancelledException if the request of the decode 
+	 * parameters was cancelled or has passed its deadline.
+	 */
+	private static void checkCancelled(DjatokaDecodeParam params) throws DjatokaCancelledException {
+		if (params.getCancellation() != null)
+			params.getCancellation().check();
+	}
+
 	/**
 	 * Apply scaling, if Scaling Factor != to 1.0 then check ScalingDimensions 
 	 * for w,h vars.  A scaling factor value must be greater than 0 and less than 2.
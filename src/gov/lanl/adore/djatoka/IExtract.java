@@ -27,6 +27,7 @@ import gov.lanl.adore.djatoka.util.ImageRecord;
 
 import java.awt.image.BufferedImage;
 import java.io.InputStream;
+import java.util.List;
 
 /**
  * Abstract extraction interface. Allows use of common input method
@@ -64,6 +65,22 @@ public interface IExtract {
 	 * @throws DjatokaException
 	 */
 	public BufferedImage process(ImageRecord input, DjatokaDecodeParam params) throws DjatokaException;
+
+	/**
+	 * Extracts several regions of the same image, opening the image once and
+	 * decoding neighbouring regions together where possible.
+	 * <p>
+	 * This method was added to the interface after the initial release, so
+	 * existing implementations must add it to compile. Implementations 
+	 * without a batch decode of their own can delegate to 
+	 * RegionBatch.process(this, input, params), which groups the regions and
+	 * decodes each group through process(String, DjatokaDecodeParam).
+	 * @param input ImageRecord wrapper containing file reference, inputstream, etc.
+	 * @param params DjatokaDecodeParam instance for each region to be extracted.
+	 * @return extracted regions as BufferedImages, in the order of params
+	 * @throws DjatokaException
+	 */
+	public List<BufferedImage> processBatch(ImageRecord input, List<DjatokaDecodeParam> params) throws DjatokaException;
 	
 	/**
 	 * Returns JPEG 2000 width, height, resolution levels in Integer[]
@@ -26,13 +26,26 @@ package gov.lanl.adore.djatoka.io.reader;
 import gov.lanl.adore.djatoka.io.FormatIOException;
 import gov.lanl.adore.djatoka.io.IReader;
 import gov.lanl.adore.djatoka.util.IOUtils;
+import gov.lanl.adore.djatoka.util.PixelLayout;
 import ij.ImagePlus;
 import ij.io.Opener;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 
 import java.awt.Graphics;
 import java.awt.Image;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.InputStream;
 
@@ -47,6 +60,11 @@ import org.apache.log4j.Logger;
  */
 public class ImageJReader implements IReader {
 	static Logger logger = Logger.getLogger(ImageJReader.class);
+	// Colour models of TYPE_INT_RGB and TYPE_BYTE_GRAY images
+	private static final int[] RGB_MASKS = new int[] {0xff0000, 0xff00, 0xff};
+	private static final ColorModel RGB = new DirectColorModel(24, RGB_MASKS[0], RGB_MASKS[1], RGB_MASKS[2]);
+	private static final ColorModel GRAY = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), 
+			new int[] {8}, false, true, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
 	/**
 	 * Returns a BufferedImage instance for provided InputStream
 	 * @param input an InputStream consisting of an image bitstream
@@ -90,9 +108,13 @@ public class ImageJReader implements IReader {
 	}
 	
 	/**
-	 * Internal ImagePlus processing to populate BufferedIMage using Graphics objects
+	 * Internal ImagePlus processing to populate a BufferedImage. Grayscale 
+	 * and RGB processors are wrapped as TYPE_BYTE_GRAY and TYPE_INT_RGB 
+	 * images sharing the processor's pixel array; 16 and 32-bit processors
+	 * are first reduced to 8 bits using their display range. Processors 
+	 * with a colour lookup table are drawn into a TYPE_INT_RGB image.
 	 * @param imp an ImageJ ImagePlus object
-	 * @return a BufferedImage of type BufferedImage.TYPE_3BYTE_BGR
+	 * @return a BufferedImage of type TYPE_BYTE_GRAY or TYPE_INT_RGB
 	 * @throws FormatIOException
 	 */
 	private BufferedImage open(ImagePlus imp) throws FormatIOException {
@@ -103,19 +125,35 @@ public class ImageJReader implements IReader {
 		ImageProcessor ip = imp.getProcessor();
 		int width = ip.getWidth();
 		int height = ip.getHeight();
-		Image img = ip.createImage();
+		if (!(ip instanceof ColorProcessor) && !(ip instanceof ByteProcessor))
+			ip = ip.convertToByte(true);
+		BufferedImage bImg = null;
+		if (ip instanceof ColorProcessor) {
+			int[] pixels = (int[]) ip.getPixels();
+			WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, pixels.length), 
+					width, height, width, RGB_MASKS, null);
+			bImg = new BufferedImage(RGB, raster, false, null);
+		} else if (!ip.isColorLut()) {
+			byte[] pixels = (byte[]) ip.getPixels();
+			if (ip.isInvertedLut()) {
+				for (int i = 0; i < pixels.length; i++)
+					pixels[i] = (byte) ~pixels[i];
+			}
+			WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(pixels, pixels.length), 
+					width, height, width, 1, new int[] {0}, null);
+			bImg = new BufferedImage(GRAY, raster, false, null);
+		} else {
+			// Indexed colour; the lookup table is applied by drawing the image
+			Image img = ip.createImage();
+			bImg = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			Graphics g = bImg.getGraphics();
+			g.drawImage(img, 0, 0, null);
+			g.dispose();
+			img.flush();
+			PixelLayout.count("read");
+		}
+		// The BufferedImage now owns the pixels; release the processor's references
 		imp.flush();
-		imp = null;
-		ip = null;
-		
-		BufferedImage bImg = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-		Graphics g = bImg.getGraphics();
-		g.drawImage(img, 0, 0, null);
-		img.flush();
-		img = null;
-		g.dispose();
-		g = null;
-
 		return bImg;
 	}
 }
@@ -25,14 +25,17 @@ package gov.lanl.adore.djatoka.io.reader;
 
 import gov.lanl.adore.djatoka.io.FormatIOException;
 import gov.lanl.adore.djatoka.io.IReader;
+import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
-import javax.media.jai.RenderedImageAdapter;
-
 import org.apache.log4j.Logger;
 
 import com.sun.media.jai.codec.ImageCodec;
@@ -40,12 +43,20 @@ import com.sun.media.jai.codec.ImageDecoder;
 
 /**
  * Returns BufferedImage give a PNM image InputStream or file path. 
- * Uses JAI to open PNM formatted images.
+ * Binary 8-bit PGM (P5) and PPM (P6) images with a maxval of 255, as 
+ * written by kdu_expand, are read in strips straight into the raster of a TYPE_BYTE_GRAY or 
+ * TYPE_3BYTE_BGR image. Other PNM variants are opened using JAI, keeping
+ * the layout of the decoded raster.
  * @author Ryan Chute
  *
  */
 public class PNMReader implements IReader{
 	static Logger logger = Logger.getLogger(PNMReader.class);
+	// Bytes of pixel data read per strip
+	private static final int STRIP_SIZE = 1 << 16;
+	// Longest header (including comments) read before falling back to JAI
+	private static final int MAX_HEADER = 4096;
+
 	/**
 	 * Returns a BufferedImage instance for provided image file path.
 	 * @param input absolute file path for image file
@@ -53,14 +64,20 @@ public class PNMReader implements IReader{
 	 * @throws FormatIOException
 	 */
 	public BufferedImage open(String input) throws FormatIOException {
-		RenderedImageAdapter aid = null;
+		InputStream is = null;
 		try {
-			ImageDecoder enc = ImageCodec.createImageDecoder("PNM", new File(input), null);
-			aid = new RenderedImageAdapter(enc.decodeAsRenderedImage());
+			is = new BufferedInputStream(new FileInputStream(new File(input)), STRIP_SIZE);
+			return open(is);
 		} catch (IOException e) {
 			return null;
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException e) {
+				}
+			}
 		}
-		return aid.getAsBufferedImage();
 	}
 
 	/**
@@ -70,13 +87,115 @@ public class PNMReader implements IReader{
 	 * @throws FormatIOException
 	 */
 	public BufferedImage open(InputStream input) throws FormatIOException {
-		RenderedImageAdapter aid = null;
+		if (!input.markSupported())
+			input = new BufferedInputStream(input, STRIP_SIZE);
+		try {
+			input.mark(MAX_HEADER);
+			int[] header = readHeader(input);
+			if (header != null)
+				return read(input, header[0], header[1], header[2]);
+			input.reset();
+		} catch (EOFException e) {
+			// Truncated or empty stream, let JAI report it
+			try {
+				input.reset();
+			} catch (IOException e1) {
+				return null;
+			}
+		} catch (IOException e) {
+			return null;
+		}
 		try {
 			ImageDecoder enc = ImageCodec.createImageDecoder("PNM", input, null);
-			aid = new RenderedImageAdapter(enc.decodeAsRenderedImage());
+			return ImageProcessingUtils.convertRenderedImage(enc.decodeAsRenderedImage());
 		} catch (IOException e) {
 			return null;
 		}
-		return aid.getAsBufferedImage();
+	}
+
+	/**
+	 * Reads the header of a binary 8-bit PGM or PPM image, leaving the 
+	 * stream at the first sample. Images with a maxval other than 255 need 
+	 * their samples rescaled and are left to JAI.
+	 * @return {bands, width, height}, or null if the image is of another kind
+	 */
+	private static int[] readHeader(InputStream in) throws IOException {
+		if (read(in) != 'P')
+			return null;
+		int m = read(in);
+		if (m != '5' && m != '6')
+			return null;
+		int[] v = new int[3];
+		int read = 2;
+		for (int i = 0; i < 3; i++) {
+			int c = read(in);
+			read++;
+			// Skip whitespace and comments
+			while (Character.isWhitespace((char) c) || c == '#') {
+				if (c == '#') {
+					while (c != '\n' && c != '\r') {
+						c = read(in);
+						if (++read > MAX_HEADER)
+							return null;
+					}
+				}
+				c = read(in);
+				if (++read > MAX_HEADER)
+					return null;
+			}
+			if (c < '0' || c > '9')
+				return null;
+			int n = 0;
+			while (c >= '0' && c <= '9') {
+				n = n * 10 + (c - '0');
+				if (n > 1 << 20)
+					return null;
+				c = read(in);
+				read++;
+			}
+			// A single whitespace character ends each value
+			if (!Character.isWhitespace((char) c))
+				return null;
+			v[i] = n;
+		}
+		if (v[0] == 0 || v[1] == 0 || v[2] != 255)
+			return null;
+		return new int[] { m == '5' ? 1 : 3, v[0], v[1] };
+	}
+
+	private static int read(InputStream in) throws IOException {
+		int c = in.read();
+		if (c < 0)
+			throw new EOFException();
+		return c;
+	}
+
+	/**
+	 * Reads samples in strips of whole rows directly into the raster of a 
+	 * new image
+	 */
+	private static BufferedImage read(InputStream in, int bands, int w, int h) throws IOException {
+		BufferedImage bi = new BufferedImage(w, h, (bands == 1) ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR);
+		byte[] data = ((DataBufferByte) bi.getRaster().getDataBuffer()).getData();
+		int strip = Math.max(1, STRIP_SIZE / (w * bands)) * w * bands;
+		for (int off = 0; off < data.length; ) {
+			int end = Math.min(data.length, off + strip);
+			for (int p = off; p < end; ) {
+				int n = in.read(data, p, end - p);
+				if (n < 0)
+					throw new EOFException("PNM image data ends at byte " + p + " of " + data.length);
+				p += n;
+			}
+			// Samples are R,G,B; the raster is B,G,R
+			if (bands == 3) {
+				for (int i = off; i < end; i += 3) {
+					byte t = data[i];
+					data[i] = data[i + 2];
+					data[i + 2] = t;
+				}
+			}
+			off = end;
+		}
+		return bi;
 	}
 }
@@ -28,7 +28,10 @@ import gov.lanl.adore.djatoka.io.IWriter;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
 import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
 import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -36,6 +39,7 @@ import java.io.OutputStream;
 import java.util.Properties;
 
 import ij.ImagePlus;
+import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 
 /**
@@ -55,8 +59,14 @@ public class GIFWriter implements IWriter {
 		if (bi != null) {
 			BufferedOutputStream bos = null;
 		    bos = new BufferedOutputStream(os);
-			ImagePlus ip = new ImagePlus();
-			ip.setImage(bi);
+			ImagePlus ip;
+			if (bi.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+				// Index gray samples directly; the default LUT is a gray ramp
+				ip = new ImagePlus("", new ByteProcessor(bi.getWidth(), bi.getHeight(), getGrayPixels(bi), null));
+			} else {
+				ip = new ImagePlus();
+				ip.setImage(bi);
+			}
 			GifEncoder ge = new GifEncoder();
 			ge.start(bos);
 			ge.addFrame(ip);
@@ -64,6 +74,24 @@ public class GIFWriter implements IWriter {
 		}
 	}
 	
+	/**
+	 * Returns the samples of a TYPE_BYTE_GRAY image, sharing the backing 
+	 * array when the raster is tightly packed.
+	 */
+	private static byte[] getGrayPixels(BufferedImage bi) {
+		Raster r = bi.getRaster();
+		int w = bi.getWidth();
+		int h = bi.getHeight();
+		if (r.getDataBuffer() instanceof DataBufferByte && r.getParent() == null
+				&& r.getSampleModel() instanceof ComponentSampleModel
+				&& ((ComponentSampleModel) r.getSampleModel()).getScanlineStride() == w) {
+			DataBufferByte db = (DataBufferByte) r.getDataBuffer();
+			if (db.getNumBanks() == 1 && db.getOffset() == 0 && db.getData().length == w * h)
+				return db.getData();
+		}
+		return (byte[]) r.getDataElements(0, 0, w, h, null);
+	}
+	
 	/**
 	 * NOT SUPPORTED.
 	 */
@@ -23,14 +23,19 @@
 
 package gov.lanl.adore.djatoka.kdu;
 
+import gov.lanl.adore.djatoka.DjatokaCancelledException;
 import gov.lanl.adore.djatoka.DjatokaDecodeParam;
 import gov.lanl.adore.djatoka.DjatokaException;
 import gov.lanl.adore.djatoka.IExtract;
 import gov.lanl.adore.djatoka.io.reader.PNMReader;
+import gov.lanl.adore.djatoka.util.DecodeThreads;
 import gov.lanl.adore.djatoka.util.IOUtils;
 import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
 import gov.lanl.adore.djatoka.util.ImageRecord;
+import gov.lanl.adore.djatoka.util.ImageRecordCache;
 import gov.lanl.adore.djatoka.util.JP2ImageInfo;
+import gov.lanl.adore.djatoka.util.PixelLayout;
+import gov.lanl.adore.djatoka.util.RegionBatch;
 import gov.lanl.util.ExecuteStreamHandler;
 import gov.lanl.util.PumpStreamHandler;
 
@@ -46,6 +51,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.StringTokenizer;
 
 import kdu_jni.Jp2_family_src;
@@ -160,9 +166,11 @@ public class KduExtractExe implements IExtract {
 		String input = STDIN;
 		String output = STDOUT;
 		BufferedImage bi = null;
+		int threads = DecodeThreads.acquire(Long.MAX_VALUE);
 		try {
-			final String command = getKduExtractCommand(input, output, dims, params);
+			final String command = getKduExtractCommand(input, output, dims, params, threads);
 			final Process process = Runtime.getRuntime().exec(command, envParams, new File(env));
+			Runnable kill = destroyOnCancel(process, params);
 			ByteArrayOutputStream stdout = new ByteArrayOutputStream();
 			ByteArrayOutputStream stderr = new ByteArrayOutputStream();
 			ExecuteStreamHandler streamHandler = new PumpStreamHandler(stdout, stderr, is);
@@ -192,11 +200,17 @@ public class KduExtractExe implements IExtract {
 				if (process != null) {
 					closeStreams(process);
 				}
+				if (kill != null)
+					params.getCancellation().removeCallback(kill);
 			}
 		} catch (Exception e) {
+			checkCancelled(params);
 			logger.error(e,e);
 			throw new DjatokaException(e);
-		} 
+		} finally {
+			DecodeThreads.release();
+		}
+		checkCancelled(params);
 		return bi;
 	}
 	
@@ -214,7 +228,7 @@ public class KduExtractExe implements IExtract {
 		BufferedImage bi = null;
 		if (isWindows) {
 			try {
-				winOut = File.createTempFile("pipe_", ".ppm");
+				winOut = File.createTempFile("pipe_", getOutputSuffix(input));
 				winOut.deleteOnExit();
 			} catch (IOException e) {
 				logger.error(e,e);
@@ -223,10 +237,12 @@ public class KduExtractExe implements IExtract {
 			output = winOut.getAbsolutePath();
 		}
 		Runtime rt = Runtime.getRuntime();
+		int threads = DecodeThreads.acquire(getPixels(input, params));
 		try {
 			ArrayList<Double> dims = getRegionMetadata(input, params);
-			String command = getKduExtractCommand(input, output, dims, params);
+			String command = getKduExtractCommand(input, output, dims, params, threads);
 			final Process process = rt.exec(command, envParams, new File(env));
+			Runnable kill = destroyOnCancel(process, params);
 			
 			if (output != null) {
 				try {
@@ -249,6 +265,7 @@ public class KduExtractExe implements IExtract {
 					logger.debug("Request out of bounds");
 					bi = OOB;
 				} catch (Exception e) {
+					checkCancelled(params);
 					String error = null;
 					try {
 						error = new String(IOUtils.getByteArray(process.getErrorStream()));
@@ -264,13 +281,67 @@ public class KduExtractExe implements IExtract {
 					if (process != null) {
 						closeStreams(process);
 					}
+					if (kill != null)
+						params.getCancellation().removeCallback(kill);
 				}
 			}
 		} catch (IOException e) {
 			logger.error(e,e);
-		} 
+		} finally {
+			DecodeThreads.release();
+		}
+		// A destroyed kdu_expand leaves a truncated or empty image
+		checkCancelled(params);
 		return bi;
 	}
+
+	/**
+	 * Returns the PNM suffix kdu_expand should write for the image, using
+	 * cached image metadata; single channel images are written as PGM.
+	 */
+	private String getOutputSuffix(String input) {
+		try {
+			if (PixelLayout.getType(getMetadata(new ImageRecord(input))) == BufferedImage.TYPE_BYTE_GRAY)
+				return ".pgm";
+		} catch (DjatokaException e) {
+			logger.debug(e);
+		}
+		return ".ppm";
+	}
+
+	/**
+	 * Destroys the kdu_expand process if the request is cancelled or passes 
+	 * its deadline.
+	 * @return the registered callback, or null if the request cannot be cancelled
+	 */
+	private static Runnable destroyOnCancel(final Process process, DjatokaDecodeParam params) {
+		if (params.getCancellation() == null)
+			return null;
+		Runnable kill = new Runnable() {
+			public void run() {
+				process.destroy();
+			}
+		};
+		params.getCancellation().addCallback(kill);
+		return kill;
+	}
+
+	private static void checkCancelled(DjatokaDecodeParam params) throws DjatokaCancelledException {
+		if (params.getCancellation() != null)
+			params.getCancellation().check();
+	}
+
+	/**
+	 * Returns the number of pixels decoded for the request, using cached 
+	 * image metadata.
+	 */
+	private long getPixels(String input, DjatokaDecodeParam params) {
+		try {
+			return DecodeThreads.getPixels(getMetadata(new ImageRecord(input)), params);
+		} catch (DjatokaException e) {
+			return Long.MAX_VALUE;
+		}
+	}
 	
     /**
 	 * Extracts region defined in DjatokaDecodeParam as BufferedImage
@@ -287,7 +358,7 @@ public class KduExtractExe implements IExtract {
 	public BufferedImage process(ImageRecord input, DjatokaDecodeParam params)
 			throws DjatokaException {
 		if (input.getImageFile() != null)
-			return process(input, params);
+			return process(input.getImageFile(), params);
 		else if (input.getObject() != null)
 			return process(getStreamFromObject(input.getObject()), params);
 		else {
@@ -308,11 +379,28 @@ public class KduExtractExe implements IExtract {
 	 */
 	public final String getKduExtractCommand(String input, String output,
 			ArrayList<Double> dims, DjatokaDecodeParam params) {
+		return getKduExtractCommand(input, output, dims, params, 0);
+	}
+
+	/**
+	 * Returns the kdu_expand command line for the request
+	 * @param input absolute file path of JPEG 2000 image file, or STDIN
+	 * @param output absolute file path of the output image, or STDOUT
+	 * @param dims region extraction dimensions
+	 * @param params DjatokaDecodeParam instance containing region and transform settings.
+	 * @param threads number of decode threads, or 0 for the Kakadu default
+	 * @return kdu_expand command line
+	 */
+	public final String getKduExtractCommand(String input, String output,
+			ArrayList<Double> dims, DjatokaDecodeParam params, int threads) {
 		StringBuffer command = new StringBuffer(exe);
 		if (input.equals(STDIN))
 			command.append(" -no_seek");
 		command.append(" -quiet -i ").append(escape(new File(input).getAbsolutePath()));
 		command.append(" -o ").append(escape(new File(output).getAbsolutePath()));
+		// -num_threads 0 decodes on the calling thread, without a thread pool
+		if (threads > 0)
+			command.append(" -num_threads ").append(threads > 1 ? threads : 0);
 		command.append(" ").append(toKduExtractArgs(params));
 		if (dims != null && dims.size() == 4) {
 			StringBuffer region = new StringBuffer();
@@ -343,15 +431,21 @@ public class KduExtractExe implements IExtract {
 		File f = new File(r.getImageFile());
 		if (!f.exists())
 			throw new DjatokaException("Image Does Not Exist");
+		// Headers are parsed once per image, until the file changes
+		if (ImageRecordCache.fill(r))
+			return r;
 		if (!ImageProcessingUtils.checkIfJp2(r.getImageFile()))
 			throw new DjatokaException("Not a JP2 image.");
 		if (f.length() <= 4096) {
 			// If < 4K bytes, image may be corrupt, use safer pure Java Metadata gatherer.
+			ImageRecord ir;
 			try {
-				return getMetadata(new FileInputStream(f));
+				ir = getMetadata(new FileInputStream(f));
 			} catch (Exception e) {
 				throw new DjatokaException("Invalid file.");
 			}
+			ImageRecordCache.put(f, ir);
+			return ir;
 		}
 		
 		Jpx_source inputSource = new Jpx_source();
@@ -398,6 +492,7 @@ public class KduExtractExe implements IExtract {
 			logger.error(e,e);
 			throw new DjatokaException(e);
 		}
+		ImageRecordCache.put(f, r);
 
 		return r;
 	}
@@ -420,6 +515,19 @@ public class KduExtractExe implements IExtract {
 		return info.getImageRecord();
 	}
 	
+	/**
+	 * Extracts several regions of the same image, opening the image once and
+	 * decoding neighbouring regions together where possible.
+	 * @param input ImageRecord wrapper containing file reference, inputstream, etc.
+	 * @param params DjatokaDecodeParam instance for each region to be extracted.
+	 * @return extracted regions as BufferedImages, in the order of params
+	 * @throws DjatokaException
+	 */
+	public List<BufferedImage> processBatch(ImageRecord input, List<DjatokaDecodeParam> params) 
+			throws DjatokaException {
+		return RegionBatch.process(this, input, params);
+	}
+
 	/**
 	 * Returns array of XMLBox records contained in JP2 resource.
 	 * @param r an ImageRecord containing a file path to resource or has object defined
@@ -482,7 +590,6 @@ public class KduExtractExe implements IExtract {
 			int scale_level = ImageProcessingUtils.getScalingLevel(r.getWidth(), r.getHeight(), width, height);
 			levels = (r.getDWTLevels() < levels) ? r.getDWTLevels() : levels;
 			int reduce = levels - scale_level;
-			System.out.println(reduce);
 			params.setLevelReductionFactor((reduce >= 0) ? reduce : 0);
 		}
 		
@@ -545,6 +652,8 @@ public class KduExtractExe implements IExtract {
 	    	sb.append("-rotate ").append(params.getRotationDegree()).append(" ");
 	    if (params.getCompositingLayer() > 0)
 	    	sb.append("-jpx_layer ").append(params.getCompositingLayer()).append(" ");
+	    if (params.getQualityLayers() > 0)
+	    	sb.append("-layers ").append(params.getQualityLayers()).append(" ");
 		return sb.toString();
 	}
 
@@ -0,0 +1,532 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.kdu;
+
+import gov.lanl.adore.djatoka.CancellationToken;
+import gov.lanl.adore.djatoka.DjatokaCancelledException;
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+import gov.lanl.adore.djatoka.DjatokaException;
+import gov.lanl.adore.djatoka.DjatokaOverloadException;
+import gov.lanl.adore.djatoka.IExtract;
+import gov.lanl.adore.djatoka.util.IOUtils;
+import gov.lanl.adore.djatoka.util.ImageRecord;
+import gov.lanl.adore.djatoka.util.RegionBatch;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Extraction implementation backed by a pool of long running decoder 
+ * processes (see KduWorker), avoiding a process start and JPEG 2000 header
+ * parse per request as with the kdu_expand bridge, while keeping native 
+ * decoder crashes out of the servlet container.
+ * <p>
+ * Requests are sent to an idle worker over its stdin and the decoded 
+ * pixels read from its stdout. A request frame is the operation (decode, 
+ * ping or quit) followed, for decode, by the file path and decode 
+ * parameters; a response frame is a status byte followed by the image 
+ * (width, height, packed RGB) or an error message. Workers which exceed 
+ * the request timeout, fail a health check or exit are destroyed and 
+ * replaced; a request interrupted by a worker crash is retried once on 
+ * another worker, but a request which timed out is not. Workers are recycled after a configurable number of 
+ * requests to bound the effect of native memory leaks.
+ * <p>
+ * Configured by the following properties:
+ * KduExtractPool.size, KduExtractPool.maxRequests, KduExtractPool.requestTimeout,
+ * KduExtractPool.healthInterval, KduExtractPool.java, KduExtractPool.jvmArgs,
+ * KduExtractPool.classpath and KduExtractPool.workerImpl
+ * @author agent
+ *
+ */
+public class KduExtractPool implements IExtract {
+	private static Logger logger = Logger.getLogger(KduExtractPool.class);
+	private static final String PROPS_KEY_SIZE = "KduExtractPool.size";
+	private static final String PROPS_KEY_MAX_REQUESTS = "KduExtractPool.maxRequests";
+	private static final String PROPS_KEY_TIMEOUT = "KduExtractPool.requestTimeout";
+	private static final String PROPS_KEY_HEALTH_INTERVAL = "KduExtractPool.healthInterval";
+	private static final String PROPS_KEY_JAVA = "KduExtractPool.java";
+	private static final String PROPS_KEY_JVM_ARGS = "KduExtractPool.jvmArgs";
+	private static final String PROPS_KEY_CLASSPATH = "KduExtractPool.classpath";
+	private static final String PROPS_KEY_WORKER_IMPL = "KduExtractPool.workerImpl";
+	private static final String DEFAULT_MAX_REQUESTS = "1000";
+	private static final String DEFAULT_TIMEOUT = "60000";
+	private static final String DEFAULT_HEALTH_INTERVAL = "30000";
+	private static final String DEFAULT_JVM_ARGS = "-Xmx256M -Djava.awt.headless=true";
+	private final LinkedBlockingQueue<Worker> idle = new LinkedBlockingQueue<Worker>();
+	private final AtomicInteger workers = new AtomicInteger();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong recycled = new AtomicLong();
+	private final AtomicLong spawned = new AtomicLong();
+	private final ScheduledThreadPoolExecutor timer;
+	private final KduExtractExe metadata = new KduExtractExe();
+	private final int size;
+	private final int maxRequests;
+	private final long timeout;
+	private final List<String> command;
+	private volatile boolean shutdown = false;
+
+	/**
+	 * Creates a new worker pool. Workers are started on demand.
+	 * @param props djatoka properties
+	 */
+	public KduExtractPool(Properties props) {
+		size = Integer.parseInt(props.getProperty(PROPS_KEY_SIZE, 
+				String.valueOf(Runtime.getRuntime().availableProcessors())));
+		maxRequests = Integer.parseInt(props.getProperty(PROPS_KEY_MAX_REQUESTS, DEFAULT_MAX_REQUESTS));
+		timeout = Long.parseLong(props.getProperty(PROPS_KEY_TIMEOUT, DEFAULT_TIMEOUT));
+		command = getCommand(props, size);
+		timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "djatoka-kdu-pool");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long interval = Long.parseLong(props.getProperty(PROPS_KEY_HEALTH_INTERVAL, DEFAULT_HEALTH_INTERVAL));
+		if (interval > 0) {
+			timer.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					checkHealth();
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+		logger.debug("worker command: " + command);
+	}
+
+	/**
+	 * Extracts region defined in DjatokaDecodeParam as BufferedImage
+	 * @param input absolute file path of JPEG 2000 image file.
+	 * @param params DjatokaDecodeParam instance containing region and transform settings.
+	 * @return extracted region as a BufferedImage
+	 * @throws DjatokaException
+	 */
+	public BufferedImage process(String input, DjatokaDecodeParam params) throws DjatokaException {
+		if (!new File(input).exists())
+			throw new DjatokaException("Image Does Not Exist");
+		requests.incrementAndGet();
+		IOException error = null;
+		// A request interrupted by a worker crash is retried once on another worker
+		for (int attempt = 0; attempt < 2; attempt++) {
+			Worker w = borrow(params.getCancellation());
+			try {
+				BufferedImage bi = w.decode(input, params);
+				release(w);
+				return bi;
+			} catch (DjatokaCancelledException e) {
+				// The worker was destroyed to abandon the decode
+				discard(w);
+				throw e;
+			} catch (DjatokaException e) {
+				release(w);
+				throw e;
+			} catch (RuntimeException e) {
+				// e.g. the watchdog could not be scheduled as the pool was shut down
+				discard(w);
+				throw e;
+			} catch (IOException e) {
+				failures.incrementAndGet();
+				discard(w);
+				// The request would most likely time out again on another worker
+				if (w.timedOut)
+					throw new DjatokaException("Decoder worker timed out after " + timeout + " ms", e);
+				logger.warn("Decoder worker failed: " + e.getMessage());
+				error = e;
+			}
+		}
+		throw new DjatokaException("Decoder worker failed: " + error.getMessage(), error);
+	}
+
+	/**
+	 * Extracts region defined in DjatokaDecodeParam as BufferedImage
+	 * @param input InputStream containing a JPEG 2000 image bitstream.
+	 * @param params DjatokaDecodeParam instance containing region and transform settings.
+	 * @return extracted region as a BufferedImage
+	 * @throws DjatokaException
+	 */
+	public BufferedImage process(InputStream input, DjatokaDecodeParam params) throws DjatokaException {
+		File in;
+		try {
+			in = File.createTempFile("tmp", ".jp2");
+			FileOutputStream fos = new FileOutputStream(in);
+			try {
+				IOUtils.copyStream(input, fos);
+			} finally {
+				fos.close();
+			}
+		} catch (IOException e) {
+			logger.error(e,e);
+			throw new DjatokaException(e);
+		}
+		try {
+			return process(in.getAbsolutePath(), params);
+		} finally {
+			in.delete();
+		}
+	}
+
+	/**
+	 * Extracts region defined in DjatokaDecodeParam as BufferedImage
+	 * @param input ImageRecord wrapper containing file reference, inputstream, etc.
+	 * @param params DjatokaDecodeParam instance containing region and transform settings.
+	 * @return extracted region as a BufferedImage
+	 * @throws DjatokaException
+	 */
+	public BufferedImage process(ImageRecord input, DjatokaDecodeParam params) throws DjatokaException {
+		if (input.getImageFile() != null)
+			return process(input.getImageFile(), params);
+		else if (input.getObject() != null)
+			return process(KduExtractExe.getStreamFromObject(input.getObject()), params);
+		throw new DjatokaException("File not defined and Input Object is null");
+	}
+
+	/**
+	 * Returns populated JPEG 2000 ImageRecord instance
+	 * @param r ImageRecord containing file path the JPEG 2000 image
+	 * @return a populated JPEG 2000 ImageRecord instance
+	 * @throws DjatokaException
+	 */
+	public ImageRecord getMetadata(ImageRecord r) throws DjatokaException {
+		return metadata.getMetadata(r);
+	}
+
+	/**
+	 * Extracts several regions of the same image, opening the image once and
+	 * decoding neighbouring regions together where possible.
+	 * @param input ImageRecord wrapper containing file reference, inputstream, etc.
+	 * @param params DjatokaDecodeParam instance for each region to be extracted.
+	 * @return extracted regions as BufferedImages, in the order of params
+	 * @throws DjatokaException
+	 */
+	public List<BufferedImage> processBatch(ImageRecord input, List<DjatokaDecodeParam> params) 
+			throws DjatokaException {
+		return RegionBatch.process(this, input, params);
+	}
+
+	/**
+	 * Returns array of XML boxes found in the JPEG 2000 file
+	 * @param r ImageRecord containing file path the JPEG 2000 image
+	 * @return an array of XML box values
+	 * @throws DjatokaException
+	 */
+	public String[] getXMLBox(ImageRecord r) throws DjatokaException {
+		return metadata.getXMLBox(r);
+	}
+
+	/**
+	 * Returns the maximum number of workers, i.e. of concurrent decodes
+	 * @return the maximum number of workers
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Stops all workers and the health check. Workers running a request 
+	 * are stopped once the request completes.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		Worker w;
+		while ((w = idle.poll()) != null)
+			discard(w);
+		timer.shutdown();
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("{");
+		sb.append("\"workers\": \"" + workers.get() + "\", ");
+		sb.append("\"idle\": \"" + idle.size() + "\", ");
+		sb.append("\"requests\": \"" + requests.get() + "\", ");
+		sb.append("\"failures\": \"" + failures.get() + "\", ");
+		sb.append("\"recycled\": \"" + recycled.get() + "\", ");
+		sb.append("\"spawned\": \"" + spawned.get() + "\" ");
+		sb.append("}");
+		return sb.toString();
+	}
+
+	/**
+	 * Returns an idle worker, starting a new one if the pool is not full,
+	 * otherwise waiting for one to be released, up to the request timeout or
+	 * the time remaining to the request's deadline. A request which cannot 
+	 * get a worker in time is rejected with a DjatokaOverloadException.
+	 * @param token cancellation token of the request, may be null
+	 */
+	private Worker borrow(CancellationToken token) throws DjatokaException {
+		if (shutdown)
+			throw new DjatokaException("Decoder worker pool is shut down");
+		Worker w = idle.poll();
+		if (w != null)
+			return w;
+		if (workers.incrementAndGet() <= size) {
+			try {
+				return spawn();
+			} catch (IOException e) {
+				workers.decrementAndGet();
+				throw new DjatokaException("Unable to start decoder worker: " + e.getMessage(), e);
+			}
+		}
+		workers.decrementAndGet();
+		long wait = (token != null) ? Math.min(timeout, token.getRemaining()) : timeout;
+		try {
+			w = idle.poll(wait, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (w == null && token != null)
+			token.check();
+		if (w == null)
+			throw new DjatokaOverloadException("No decoder worker available after " + wait + " ms", 
+					(int) Math.max(1, (wait + 999) / 1000));
+		return w;
+	}
+
+	private void release(Worker w) {
+		if (shutdown) {
+			discard(w);
+		} else if (w.requests >= maxRequests) {
+			recycled.incrementAndGet();
+			discard(w);
+		} else {
+			idle.offer(w);
+		}
+	}
+
+	private void discard(Worker w) {
+		workers.decrementAndGet();
+		w.quit();
+	}
+
+	/**
+	 * Pings each idle worker, replacing those which do not respond in time
+	 */
+	private void checkHealth() {
+		// Drop cancelled watchdogs, which are otherwise held until they expire
+		timer.purge();
+		if (shutdown)
+			return;
+		int n = idle.size();
+		for (int i = 0; i < n; i++) {
+			Worker w = idle.poll();
+			if (w == null)
+				return;
+			try {
+				w.ping();
+				idle.offer(w);
+			} catch (IOException e) {
+				failures.incrementAndGet();
+				logger.warn("Decoder worker failed health check: " + e.getMessage());
+				discard(w);
+			}
+		}
+	}
+
+	private Worker spawn() throws IOException {
+		ProcessBuilder pb = new ProcessBuilder(command);
+		Map<String, String> env = pb.environment();
+		for (String v : new String[] {"LD_LIBRARY_PATH", "DYLD_LIBRARY_PATH"}) {
+			if (System.getProperty(v) != null)
+				env.put(v, System.getProperty(v));
+		}
+		if (System.getProperty("kakadu.home") != null)
+			pb.directory(new File(System.getProperty("kakadu.home")));
+		spawned.incrementAndGet();
+		return new Worker(pb.start());
+	}
+
+	private static List<String> getCommand(Properties props, int size) {
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(props.getProperty(PROPS_KEY_JAVA, System.getProperty("java.home") 
+				+ File.separator + "bin" + File.separator + "java"));
+		StringTokenizer st = new StringTokenizer(props.getProperty(PROPS_KEY_JVM_ARGS, DEFAULT_JVM_ARGS));
+		while (st.hasMoreTokens())
+			cmd.add(st.nextToken());
+		for (String p : new String[] {"java.library.path", "kakadu.home"}) {
+			if (System.getProperty(p) != null)
+				cmd.add("-D" + p + "=" + System.getProperty(p));
+		}
+		cmd.add("-cp");
+		cmd.add(props.getProperty(PROPS_KEY_CLASSPATH, getDefaultClasspath()));
+		cmd.add(KduWorker.class.getName());
+		cmd.add(props.getProperty(PROPS_KEY_WORKER_IMPL, KduWorker.DEFAULT_IMPL));
+		// Workers decode one request at a time; share the processors between them
+		cmd.add(String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, size))));
+		return cmd;
+	}
+
+	/**
+	 * Returns the location of the djatoka classes along with the jars beside
+	 * them (e.g. WEB-INF/classes and WEB-INF/lib/*.jar), falling back to the
+	 * class path of this JVM.
+	 */
+	private static String getDefaultClasspath() {
+		StringBuffer cp = new StringBuffer();
+		try {
+			CodeSource cs = KduExtractPool.class.getProtectionDomain().getCodeSource();
+			if (cs != null && cs.getLocation() != null) {
+				File src = new File(cs.getLocation().toURI());
+				File lib = src.isDirectory() ? new File(src.getParentFile(), "lib") : src.getParentFile();
+				cp.append(src.getAbsolutePath());
+				File[] jars = lib.listFiles();
+				if (jars != null) {
+					for (File j : jars) {
+						if (j.getName().endsWith(".jar") && !j.equals(src))
+							cp.append(File.pathSeparator).append(j.getAbsolutePath());
+					}
+				}
+			}
+		} catch (URISyntaxException e) {
+			logger.warn("Unable to determine worker classpath: " + e.getMessage());
+		} catch (SecurityException e) {
+			logger.warn("Unable to determine worker classpath: " + e.getMessage());
+		}
+		return (cp.length() > 0) ? cp.toString() : System.getProperty("java.class.path");
+	}
+
+	/**
+	 * A decoder process and its request and response streams. A worker is 
+	 * used by one thread at a time.
+	 */
+	private final class Worker {
+		private final Process process;
+		private final DataOutputStream out;
+		private final DataInputStream in;
+		private int requests = 0;
+		volatile boolean timedOut = false;
+
+		Worker(Process process) {
+			this.process = process;
+			this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+			this.in = new DataInputStream(new BufferedInputStream(process.getInputStream(), 65536));
+			final InputStream err = process.getErrorStream();
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						BufferedReader r = new BufferedReader(new InputStreamReader(err));
+						String line;
+						while ((line = r.readLine()) != null)
+							logger.debug("worker: " + line);
+					} catch (IOException e) {
+						// Worker exited
+					}
+				}
+			}, "djatoka-kdu-worker-stderr");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		BufferedImage decode(String input, DjatokaDecodeParam params) throws IOException, DjatokaException {
+			requests++;
+			ScheduledFuture<?> watchdog = watch();
+			CancellationToken token = params.getCancellation();
+			Runnable kill = null;
+			if (token != null) {
+				kill = new Runnable() {
+					public void run() {
+						process.destroy();
+					}
+				};
+				token.addCallback(kill);
+			}
+			try {
+				out.writeInt(KduWorker.OP_DECODE);
+				out.writeUTF(new File(input).getAbsolutePath());
+				KduWorker.writeParams(params, out);
+				out.flush();
+				int status = in.readUnsignedByte();
+				if (status == KduWorker.STATUS_ERROR)
+					throw new DjatokaException(in.readUTF());
+				if (status != KduWorker.STATUS_OK)
+					throw new IOException("Invalid worker response: " + status);
+				return KduWorker.readImage(in);
+			} catch (IOException e) {
+				if (token != null)
+					token.check();
+				throw e;
+			} finally {
+				watchdog.cancel(false);
+				if (kill != null)
+					token.removeCallback(kill);
+			}
+		}
+
+		void ping() throws IOException {
+			ScheduledFuture<?> watchdog = watch();
+			try {
+				out.writeInt(KduWorker.OP_PING);
+				out.flush();
+				if (in.readUnsignedByte() != KduWorker.STATUS_OK)
+					throw new IOException("Invalid worker response");
+			} finally {
+				watchdog.cancel(false);
+			}
+		}
+
+		void quit() {
+			try {
+				out.writeInt(KduWorker.OP_QUIT);
+				out.flush();
+			} catch (IOException e) {
+				// Already exited
+			}
+			process.destroy();
+		}
+
+		/**
+		 * Destroys the process if the current call does not complete within 
+		 * the request timeout, which unblocks the calling thread.
+		 */
+		private ScheduledFuture<?> watch() {
+			return timer.schedule(new Runnable() {
+				public void run() {
+					logger.warn("Decoder worker timed out after " + timeout + " ms");
+					timedOut = true;
+					process.destroy();
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+		}
+	}
+}
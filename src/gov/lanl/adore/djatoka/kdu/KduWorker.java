@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.kdu;
+
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+import gov.lanl.adore.djatoka.DjatokaException;
+import gov.lanl.adore.djatoka.IExtract;
+import gov.lanl.adore.djatoka.util.DecodeParamNormalizer;
+import gov.lanl.adore.djatoka.util.DecodeThreads;
+import gov.lanl.adore.djatoka.util.ImageRecord;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Long running decoder process used by KduExtractPool. Requests are read
+ * from stdin and responses written to stdout using a simple framed protocol
+ * (see KduExtractPool), so the cost of starting a process and loading the 
+ * Kakadu libraries is paid once per worker rather than once per request, 
+ * and a decoder crash takes down only this process.
+ * <p>
+ * Regions are resolved against the image metadata before decoding, so the
+ * decoder receives an explicit reduction factor and a pixel region with 
+ * the same meaning as the kdu_expand bridge.
+ * <p>
+ * Usage: KduWorker [IExtract implementation class] [max threads per decode]
+ * @author agent
+ *
+ */
+public class KduWorker {
+	static final int OP_DECODE = 1;
+	static final int OP_PING = 2;
+	static final int OP_QUIT = 3;
+	static final int STATUS_OK = 0;
+	static final int STATUS_ERROR = 1;
+	static final String DEFAULT_IMPL = "gov.lanl.adore.djatoka.kdu.jni.KduDecoderJNI";
+	private final IExtract impl;
+	private final KduExtractExe metadata = new KduExtractExe();
+
+	public KduWorker(IExtract impl) {
+		this.impl = impl;
+	}
+
+	public static void main(String[] args) throws Exception {
+		// stdout carries the protocol; anything printed by libraries goes to stderr
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(System.out, 65536));
+		System.setOut(new PrintStream(System.err, true));
+		DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+		String implClass = (args.length > 0) ? args[0] : DEFAULT_IMPL;
+		if (args.length > 1)
+			DecodeThreads.setMaxThreads(Integer.parseInt(args[1]));
+		KduWorker worker = new KduWorker((IExtract) Class.forName(implClass).newInstance());
+		worker.run(in, out);
+	}
+
+	/**
+	 * Serves requests until the input is closed or a quit request is received
+	 * @param in request stream
+	 * @param out response stream
+	 * @throws IOException if the parent process is no longer reachable
+	 */
+	public void run(DataInputStream in, DataOutputStream out) throws IOException {
+		while (true) {
+			int op;
+			try {
+				op = in.readInt();
+			} catch (EOFException e) {
+				return;
+			}
+			if (op == OP_QUIT)
+				return;
+			if (op == OP_PING) {
+				out.writeByte(STATUS_OK);
+				out.flush();
+				continue;
+			}
+			if (op != OP_DECODE)
+				throw new IOException("Unknown request: " + op);
+			String file = in.readUTF();
+			DjatokaDecodeParam params = readParams(in);
+			BufferedImage bi = null;
+			String error = null;
+			try {
+				bi = decode(file, params);
+				if (bi == null)
+					error = "Unable to decode " + file;
+			} catch (DjatokaException e) {
+				error = e.getMessage();
+			} catch (RuntimeException e) {
+				error = e.toString();
+			}
+			if (error != null) {
+				out.writeByte(STATUS_ERROR);
+				out.writeUTF(error);
+			} else {
+				writeImage(bi, out);
+			}
+			out.flush();
+		}
+	}
+
+	private BufferedImage decode(String file, DjatokaDecodeParam params) throws DjatokaException {
+		ImageRecord r = metadata.getMetadata(new ImageRecord(file));
+		DjatokaDecodeParam c = DecodeParamNormalizer.resolve(r, params);
+		if (c == null)
+			throw new DjatokaException("Region out of bounds: " + params.getRegion());
+		return impl.process(file, c);
+	}
+
+	static void writeParams(DjatokaDecodeParam params, DataOutputStream out) throws IOException {
+		out.writeInt(params.getLevel());
+		out.writeInt(params.getLevelReductionFactor());
+		out.writeUTF(params.getRegion() != null ? params.getRegion() : "");
+		out.writeInt(params.getRotationDegree());
+		out.writeInt(params.getCompositingLayer());
+		out.writeInt(params.getQualityLayers());
+		int[] dims = params.getScalingDimensions();
+		if (dims != null && dims.length == 2) {
+			out.writeBoolean(true);
+			out.writeInt(dims[0]);
+			out.writeInt(dims[1]);
+		} else
+			out.writeBoolean(false);
+	}
+
+	static DjatokaDecodeParam readParams(DataInputStream in) throws IOException {
+		DjatokaDecodeParam params = new DjatokaDecodeParam();
+		params.setLevel(in.readInt());
+		params.setLevelReductionFactor(in.readInt());
+		String region = in.readUTF();
+		if (region.length() > 0)
+			params.setRegion(region);
+		params.setRotationDegree(in.readInt());
+		params.setCompositingLayer(in.readInt());
+		params.setQualityLayers(in.readInt());
+		if (in.readBoolean())
+			params.setScalingDimensions(new int[] {in.readInt(), in.readInt()});
+		return params;
+	}
+
+	/**
+	 * Writes an OK status followed by the width, height, number of bands and
+	 * samples of the image; one band for TYPE_BYTE_GRAY images, otherwise 
+	 * three (R,G,B).
+	 */
+	static void writeImage(BufferedImage bi, DataOutputStream out) throws IOException {
+		int w = bi.getWidth();
+		int h = bi.getHeight();
+		int type = bi.getType();
+		int bands = (type == BufferedImage.TYPE_BYTE_GRAY) ? 1 : 3;
+		out.writeByte(STATUS_OK);
+		out.writeInt(w);
+		out.writeInt(h);
+		out.writeByte(bands);
+		WritableRaster raster = bi.getRaster();
+		int[] row = new int[w];
+		byte[] buf = new byte[w * bands];
+		for (int y = 0; y < h; y++) {
+			if (bands == 1 || type == BufferedImage.TYPE_3BYTE_BGR) {
+				// Data elements of both are the samples in band (R,G,B) order
+				raster.getDataElements(0, y, w, 1, buf);
+			} else {
+				if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+					raster.getDataElements(0, y, w, 1, row);
+				else
+					bi.getRGB(0, y, w, 1, row, 0, w);
+				for (int x = 0, i = 0; x < w; x++) {
+					int p = row[x];
+					buf[i++] = (byte) (p >> 16);
+					buf[i++] = (byte) (p >> 8);
+					buf[i++] = (byte) p;
+				}
+			}
+			out.write(buf);
+		}
+	}
+
+	/**
+	 * Reads an image written by writeImage(), following the OK status, into 
+	 * a TYPE_BYTE_GRAY or TYPE_INT_RGB image
+	 */
+	static BufferedImage readImage(DataInputStream in) throws IOException {
+		int w = in.readInt();
+		int h = in.readInt();
+		int bands = in.readByte();
+		if (w <= 0 || h <= 0 || (bands != 1 && bands != 3))
+			throw new IOException("Invalid image: " + w + "x" + h + "x" + bands);
+		if (bands == 1) {
+			BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+			in.readFully(((DataBufferByte) bi.getRaster().getDataBuffer()).getData());
+			return bi;
+		}
+		BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		int[] data = ((DataBufferInt) bi.getRaster().getDataBuffer()).getData();
+		byte[] buf = new byte[w * 3];
+		for (int y = 0, o = 0; y < h; y++) {
+			in.readFully(buf);
+			for (int i = 0; i < buf.length; )
+				data[o++] = ((buf[i++] & 0xff) << 16) | ((buf[i++] & 0xff) << 8) | (buf[i++] & 0xff);
+		}
+		return bi;
+	}
+}
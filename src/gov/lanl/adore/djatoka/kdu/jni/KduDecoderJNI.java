@@ -0,0 +1,493 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.kdu.jni;
+
+import gov.lanl.adore.djatoka.CancellationToken;
+import gov.lanl.adore.djatoka.DjatokaCancelledException;
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+import gov.lanl.adore.djatoka.DjatokaException;
+import gov.lanl.adore.djatoka.IExtract;
+import gov.lanl.adore.djatoka.kdu.KduExtractExe;
+import gov.lanl.adore.djatoka.util.DecodeParamNormalizer;
+import gov.lanl.adore.djatoka.util.DecodeThreads;
+import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
+import gov.lanl.adore.djatoka.util.ImageRecord;
+import gov.lanl.adore.djatoka.util.RegionBatch;
+import gov.lanl.util.ConcurrentLinkedHashMap;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import kdu_jni.Jp2_family_src;
+import kdu_jni.Jpx_codestream_source;
+import kdu_jni.Jpx_input_box;
+import kdu_jni.Jpx_layer_source;
+import kdu_jni.Jpx_source;
+import kdu_jni.KduException;
+import kdu_jni.Kdu_channel_mapping;
+import kdu_jni.Kdu_codestream;
+import kdu_jni.Kdu_coords;
+import kdu_jni.Kdu_dims;
+import kdu_jni.Kdu_global;
+import kdu_jni.Kdu_region_decompressor;
+import kdu_jni.Kdu_simple_file_source;
+import kdu_jni.Kdu_thread_env;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Thread-safe Kakadu JNI extractor which keeps opened codestreams of hot
+ * images for reuse. Each open codestream is persistent and used by one 
+ * request at a time; between requests it is re-targeted to the requested
+ * resolution and region rather than re-opened and re-parsed. Idle 
+ * codestreams are bounded per image (maxIdlePerImage) and images are 
+ * held in least recently used order (maxImages); evicted, stale (the file 
+ * changed) or failed codestreams are destroyed rather than reused.
+ * <p>
+ * Requests are resolved against cached image metadata and decoded through 
+ * DecodeParamNormalizer, so the decoded region matches KduExtractExe.
+ * @author agent
+ *
+ */
+public class KduDecoderJNI implements IExtract {
+	private static Logger logger = Logger.getLogger(KduDecoderJNI.class);
+	public static final String PROPS_KEY_MAX_IMAGES = "KduDecoderJNI.maxImages";
+	public static final String PROPS_KEY_MAX_IDLE = "KduDecoderJNI.maxIdlePerImage";
+	private static final int DEFAULT_MAX_IMAGES = 256;
+	private static final int DEFAULT_MAX_IDLE = 2;
+
+	static {
+		System.loadLibrary("kdu_jni");
+	}
+
+	private final ConcurrentLinkedHashMap<String, Slot> images;
+	private final int maxIdle;
+	private final KduExtractExe metadata = new KduExtractExe();
+	private final AtomicLong opened = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+	private final AtomicLong destroyed = new AtomicLong();
+	private final AtomicLong active = new AtomicLong();
+
+	/**
+	 * Creates an extractor with default pool bounds
+	 */
+	public KduDecoderJNI() {
+		this(DEFAULT_MAX_IMAGES, DEFAULT_MAX_IDLE);
+	}
+
+	/**
+	 * Creates an extractor using the KduDecoderJNI.* properties
+	 * @param props djatoka properties
+	 */
+	public KduDecoderJNI(Properties props) {
+		this(Integer.parseInt(props.getProperty(PROPS_KEY_MAX_IMAGES, String.valueOf(DEFAULT_MAX_IMAGES))),
+				Integer.parseInt(props.getProperty(PROPS_KEY_MAX_IDLE, String.valueOf(DEFAULT_MAX_IDLE))));
+	}
+
+	/**
+	 * Creates an extractor
+	 * @param maxImages maximum number of images holding idle codestreams
+	 * @param maxIdle maximum number of idle codestreams held per image
+	 */
+	public KduDecoderJNI(int maxImages, int maxIdle) {
+		this.maxIdle = Math.max(1, maxIdle);
+		this.images = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, Math.max(1, maxImages),
+				new ConcurrentLinkedHashMap.EvictionListener<String, Slot>() {
+					public void onEviction(String key, Slot slot) {
+						slot.close();
+					}
+				});
+	}
+
+	/**
+	 * Returns JPEG 2000 props in ImageRecord
+	 * @param r ImageRecord containing absolute file path of JPEG 2000 image file.
+	 * @return a populated ImageRecord object
+	 * @throws DjatokaException
+	 */
+	public ImageRecord getMetadata(ImageRecord r) throws DjatokaException {
+		return metadata.getMetadata(r);
+	}
+
+	/**
+	 * Returns array of XMLBox records contained in JP2 resource.
+	 * @param r an ImageRecord containing a file path to resource or has object defined
+	 * @return an array of XML records contained in JP2 XMLboxes
+	 * @throws DjatokaException
+	 */
+	public String[] getXMLBox(ImageRecord r) throws DjatokaException {
+		return metadata.getXMLBox(r);
+	}
+
+	/**
+	 * Extracts region defined in DjatokaDecodeParam as BufferedImage
+	 * @param input InputStream containing a JPEG 2000 image bitstream.
+	 * @param params DjatokaDecodeParam instance containing region and transform settings.
+	 * @return extracted region as a BufferedImage
+	 * @throws DjatokaException
+	 */
+	public BufferedImage process(InputStream input, DjatokaDecodeParam params) throws DjatokaException {
+		// Streams cannot be held open across requests
+		return metadata.process(input, params);
+	}
+
+	/**
+	 * Extracts region defined in DjatokaDecodeParam as BufferedImage
+	 * @param input ImageRecord wrapper containing file reference, inputstream, etc.
+	 * @param params DjatokaDecodeParam instance containing region and transform settings.
+	 * @return extracted region as a BufferedImage
+	 * @throws DjatokaException
+	 */
+	public BufferedImage process(ImageRecord input, DjatokaDecodeParam params) throws DjatokaException {
+		if (input.getImageFile() != null)
+			return process(input.getImageFile(), params);
+		else if (input.getObject() != null && (input.getObject() instanceof InputStream))
+			return process((InputStream) input.getObject(), params);
+		else
+			throw new DjatokaException("File not defined and Input Object Type "
+					+ input.getObject().getClass().getName() + " is not supported");
+	}
+
+	/**
+	 * Extracts region defined in DjatokaDecodeParam as BufferedImage
+	 * @param input absolute file path of JPEG 2000 image file.
+	 * @param params DjatokaDecodeParam instance containing region and transform settings.
+	 * @return extracted region as a BufferedImage
+	 * @throws DjatokaException
+	 */
+	public BufferedImage process(String input, DjatokaDecodeParam params) throws DjatokaException {
+		ImageRecord r = metadata.getMetadata(new ImageRecord(input));
+		DjatokaDecodeParam c = DecodeParamNormalizer.resolve(r, params);
+		if (c == null)
+			throw new DjatokaException("Region is outside of the image bounds");
+		Rectangle rect = DecodeParamNormalizer.getLevelRect(r, c);
+		Handle h = borrow(input, c.getCompositingLayer());
+		boolean ok = false;
+		try {
+			BufferedImage bi = decode(h, c.getLevelReductionFactor(), c.getQualityLayers(), rect, c.getCancellation());
+			ok = true;
+			if (c.getRotationDegree() > 0)
+				bi = ImageProcessingUtils.rotate(bi, c.getRotationDegree());
+			return bi;
+		} catch (KduException e) {
+			throw new DjatokaException(e);
+		} finally {
+			release(h, ok);
+		}
+	}
+
+	/**
+	 * Extracts several regions of the same image from a single open 
+	 * codestream; neighbouring regions are decoded together as one region.
+	 * @param input ImageRecord wrapper containing file reference, inputstream, etc.
+	 * @param params DjatokaDecodeParam instance for each region to be extracted.
+	 * @return extracted regions as BufferedImages, in the order of params
+	 * @throws DjatokaException
+	 */
+	public List<BufferedImage> processBatch(ImageRecord input, List<DjatokaDecodeParam> params) 
+			throws DjatokaException {
+		if (input.getImageFile() == null)
+			return RegionBatch.process(this, input, params);
+		String file = input.getImageFile();
+		ImageRecord r = metadata.getMetadata(new ImageRecord(file));
+		BufferedImage[] out = new BufferedImage[params.size()];
+		Handle h = null;
+		int layer = -1;
+		boolean ok = true;
+		try {
+			for (RegionBatch.Group g : RegionBatch.plan(r, params)) {
+				DjatokaDecodeParam c = g.getParams();
+				if (g.getRect() == null) {
+					out[g.getIndex(0)] = process(file, c);
+					continue;
+				}
+				if (h == null || layer != c.getCompositingLayer()) {
+					if (h != null)
+						release(h, true);
+					h = null;
+					layer = c.getCompositingLayer();
+					h = borrow(file, layer);
+				}
+				ok = false;
+				BufferedImage bi = decode(h, c.getLevelReductionFactor(), c.getQualityLayers(), 
+						g.getRect(), c.getCancellation());
+				ok = true;
+				for (int i = 0; i < g.size(); i++)
+					out[g.getIndex(i)] = g.extract(bi, i);
+			}
+		} catch (KduException e) {
+			throw new DjatokaException(e);
+		} finally {
+			if (h != null)
+				release(h, ok);
+		}
+		return Arrays.asList(out);
+	}
+
+	/**
+	 * Decodes the level rectangle from an open codestream
+	 */
+	private static BufferedImage decode(Handle h, int reduce, int layers, Rectangle rect, CancellationToken token) 
+			throws KduException, DjatokaException {
+		Kdu_codestream codestream = h.codestream;
+		// Discarded quality layers are skipped by the entropy decoder
+		codestream.Apply_input_restrictions(0, 0, reduce, layers, null, Kdu_global.KDU_WANT_OUTPUT_COMPONENTS);
+		Kdu_dims levelDims = new Kdu_dims();
+		codestream.Get_dims(h.refComponent, levelDims);
+		Kdu_coords levelPos = levelDims.Access_pos();
+		Kdu_coords levelSize = levelDims.Access_size();
+		int w = Math.min(rect.width, levelSize.Get_x() - rect.x);
+		int hgt = Math.min(rect.height, levelSize.Get_y() - rect.y);
+		if (w <= 0 || hgt <= 0)
+			throw new DjatokaException("Region is outside of the image bounds");
+		Kdu_dims region = new Kdu_dims();
+		region.Access_pos().Set_x(levelPos.Get_x() + rect.x);
+		region.Access_pos().Set_y(levelPos.Get_y() + rect.y);
+		region.Access_size().Set_x(w);
+		region.Access_size().Set_y(hgt);
+
+		// Large regions decode on several threads when few decodes are running
+		int threads = DecodeThreads.acquire((long) w * hgt);
+		Kdu_thread_env env = null;
+		Kdu_region_decompressor decompressor = new Kdu_region_decompressor();
+		try {
+			if (threads > 1) {
+				env = new Kdu_thread_env();
+				env.Create();
+				for (int i = 1; i < threads; i++)
+					env.Add_thread();
+			}
+			if (!decompressor.Start(codestream, h.channels, -1, reduce, 
+					KduExtractProcessorJNI.getMaxLayers(layers), region, 
+					new Kdu_coords(1, 1), new Kdu_coords(1, 1), false, Kdu_global.KDU_WANT_OUTPUT_COMPONENTS, false, env))
+				throw new DjatokaException("Unable to start decompression");
+			BufferedImage bi;
+			try {
+				bi = KduExtractProcessorJNI.decompress(decompressor, region, 
+						KduExtractProcessorJNI.getImageType(h.channels), token);
+			} catch (KduException e) {
+				decompressor.Finish();
+				throw e;
+			} catch (DjatokaCancelledException e) {
+				decompressor.Finish();
+				throw e;
+			}
+			if (!decompressor.Finish())
+				throw new DjatokaException("Decompression failed");
+			return bi;
+		} finally {
+			try {
+				decompressor.Native_destroy();
+				if (env != null) {
+					env.Destroy();
+					env.Native_destroy();
+				}
+			} finally {
+				DecodeThreads.release();
+			}
+		}
+	}
+
+	/**
+	 * Returns an idle codestream of the image, or opens a new one
+	 */
+	private Handle borrow(String file, int layer) throws DjatokaException {
+		String key = file + "|" + layer;
+		Slot slot = images.get(key);
+		if (slot == null) {
+			Slot s = new Slot();
+			slot = images.putIfAbsent(key, s);
+			if (slot == null)
+				slot = s;
+		}
+		File f = new File(file);
+		long length = f.length();
+		long mtime = f.lastModified();
+		Handle h;
+		while ((h = slot.idle.poll()) != null) {
+			if (h.length == length && h.mtime == mtime) {
+				reused.incrementAndGet();
+				active.incrementAndGet();
+				return h;
+			}
+			destroy(h);
+		}
+		try {
+			h = Handle.open(file, layer, slot);
+		} catch (KduException e) {
+			throw new DjatokaException(e);
+		}
+		h.length = length;
+		h.mtime = mtime;
+		opened.incrementAndGet();
+		active.incrementAndGet();
+		return h;
+	}
+
+	/**
+	 * Returns the codestream to its image's idle queue, or destroys it if 
+	 * the request failed, the image was evicted or the queue is full.
+	 */
+	private void release(Handle h, boolean reuse) {
+		active.decrementAndGet();
+		Slot slot = h.slot;
+		if (!reuse || slot.closed || !slot.idle.offer(h)) {
+			destroy(h);
+			return;
+		}
+		// The slot may have been evicted while the codestream was returned
+		if (slot.closed && slot.idle.remove(h))
+			destroy(h);
+	}
+
+	private void destroy(Handle h) {
+		destroyed.incrementAndGet();
+		h.close();
+	}
+
+	/**
+	 * Destroys all idle codestreams; codestreams in use are destroyed as 
+	 * they are released.
+	 */
+	public void clear() {
+		for (String key : images.keySet()) {
+			Slot slot = images.remove(key);
+			if (slot != null)
+				slot.close();
+		}
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("{");
+		sb.append("\"images\": \"" + images.size() + "\", ");
+		sb.append("\"active\": \"" + active.get() + "\", ");
+		sb.append("\"opened\": \"" + opened.get() + "\", ");
+		sb.append("\"reused\": \"" + reused.get() + "\", ");
+		sb.append("\"destroyed\": \"" + destroyed.get() + "\" ");
+		sb.append("}");
+		return sb.toString();
+	}
+
+	/**
+	 * Idle codestreams of an image
+	 */
+	private final class Slot {
+		final LinkedBlockingQueue<Handle> idle = new LinkedBlockingQueue<Handle>(maxIdle);
+		volatile boolean closed = false;
+
+		void close() {
+			closed = true;
+			Handle h;
+			while ((h = idle.poll()) != null)
+				destroy(h);
+		}
+	}
+
+	/**
+	 * An opened, persistent codestream and the native objects it depends on. 
+	 * Native objects are destroyed in the reverse order of their creation.
+	 */
+	private static final class Handle {
+		final Slot slot;
+		Jp2_family_src family;
+		Jpx_source jpx;
+		Jpx_input_box box;
+		Kdu_simple_file_source raw;
+		Kdu_codestream codestream;
+		Kdu_channel_mapping channels;
+		int refComponent;
+		long length;
+		long mtime;
+
+		private Handle(Slot slot) {
+			this.slot = slot;
+		}
+
+		static Handle open(String file, int layer, Slot slot) throws KduException, DjatokaException {
+			Handle h = new Handle(slot);
+			boolean ok = false;
+			try {
+				h.family = new Jp2_family_src();
+				h.family.Open(file, true);
+				h.jpx = new Jpx_source();
+				h.codestream = new Kdu_codestream();
+				h.channels = new Kdu_channel_mapping();
+				if (h.jpx.Open(h.family, true) < 0) {
+					// Raw codestream
+					h.raw = new Kdu_simple_file_source(file);
+					h.codestream.Create(h.raw);
+					h.channels.Configure(h.codestream);
+				} else {
+					Jpx_layer_source ls = h.jpx.Access_layer(layer);
+					if (!ls.Exists())
+						throw new DjatokaException("Compositing layer " + layer + " does not exist");
+					Jpx_codestream_source cs = h.jpx.Access_codestream(ls.Get_codestream_id(0));
+					h.box = new Jpx_input_box();
+					cs.Open_stream(h.box);
+					h.codestream.Create(h.box);
+					h.channels.Configure(ls.Access_colour(0), ls.Access_channels(), 
+							cs.Get_codestream_id(), cs.Access_palette(), cs.Access_dimensions());
+				}
+				h.codestream.Set_persistent();
+				h.refComponent = h.channels.Get_source_component(0);
+				ok = true;
+				return h;
+			} finally {
+				if (!ok)
+					h.close();
+			}
+		}
+
+		void close() {
+			try {
+				if (channels != null)
+					channels.Native_destroy();
+				if (codestream != null && codestream.Exists())
+					codestream.Destroy();
+			} catch (KduException e) {
+				logger.error(e, e);
+			} finally {
+				try {
+					if (box != null) {
+						box.Close();
+						box.Native_destroy();
+					}
+				} catch (KduException e) {
+					logger.error(e, e);
+				} finally {
+					if (raw != null)
+						raw.Native_destroy();
+					if (jpx != null)
+						jpx.Native_destroy();
+					if (family != null)
+						family.Native_destroy();
+				}
+			}
+		}
+	}
+}
@@ -28,11 +28,13 @@ import gov.lanl.adore.djatoka.DjatokaException;
 import gov.lanl.adore.djatoka.IExtract;
 import gov.lanl.adore.djatoka.util.ImageRecord;
 import gov.lanl.adore.djatoka.util.JP2ImageInfo;
+import gov.lanl.adore.djatoka.util.RegionBatch;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 
 import kdu_jni.Jp2_family_src;
 import kdu_jni.Jp2_input_box;
@@ -93,6 +95,9 @@ public class KduExtractJNI implements IExtract {
 			r.setWidth(imageSize.Get_x());
 			r.setHeight(imageSize.Get_y());
 			r.setDWTLevels(minLevels);
+			r.setQualityLayers(minLayers);
+			r.setBitDepth(codestream.Get_bit_depth(ref_component));
+			r.setNumChannels(channels.Get_num_channels());
 
 			channels.Native_destroy();
 			if (codestream.Exists())
@@ -107,6 +112,19 @@ public class KduExtractJNI implements IExtract {
 		return r;
 	}
 
+	/**
+	 * Extracts several regions of the same image, opening the image once and
+	 * decoding neighbouring regions together where possible.
+	 * @param input ImageRecord wrapper containing file reference, inputstream, etc.
+	 * @param params DjatokaDecodeParam instance for each region to be extracted.
+	 * @return extracted regions as BufferedImages, in the order of params
+	 * @throws DjatokaException
+	 */
+	public List<BufferedImage> processBatch(ImageRecord input, List<DjatokaDecodeParam> params) 
+			throws DjatokaException {
+		return RegionBatch.process(this, input, params);
+	}
+
 	public final String[] getXMLBox(ImageRecord r) throws DjatokaException {
 		String[] xml = null;
 		try {
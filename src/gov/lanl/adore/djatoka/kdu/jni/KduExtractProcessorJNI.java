@@ -23,12 +23,17 @@
 
 package gov.lanl.adore.djatoka.kdu.jni;
 
+import gov.lanl.adore.djatoka.CancellationToken;
+import gov.lanl.adore.djatoka.DjatokaCancelledException;
 import gov.lanl.adore.djatoka.DjatokaDecodeParam;
 import gov.lanl.adore.djatoka.DjatokaException;
 import gov.lanl.adore.djatoka.util.IOUtils;
 import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
+import gov.lanl.adore.djatoka.util.PixelLayout;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -65,6 +70,9 @@ public class KduExtractProcessorJNI {
 	static {
 		System.loadLibrary("kdu_jni");
 	}
+
+	private static final int STRIPE_PIXELS = 1 << 18;
+	private static final int MAX_LAYERS = 16384;
 	
 	private String sourceFile;
 	private InputStream is;
@@ -200,6 +208,8 @@ public class KduExtractProcessorJNI {
 			viewDims.Access_size().Set_x(imageSize.Get_x());
 			viewDims.Access_size().Set_y(imageSize.Get_y());
 			compositor.Add_compositing_layer(0, viewDims, viewDims);
+			if (params.getQualityLayers() > 0)
+				compositor.Set_max_quality_layers(params.getQualityLayers());
 
 			if (params.getRotationDegree() == 90)
 				compositor.Set_scale(true, false, true, 1.0F);
@@ -325,19 +335,25 @@ public class KduExtractProcessorJNI {
 			throw new DjatokaException(e);
 		}
 		
+		Jp2_source inputSource = null;
+		Jp2_family_src jp2_family_in = null;
+		Kdu_codestream codestream = null;
+		Kdu_channel_mapping channels = null;
+		Kdu_region_decompressor decompressor = null;
+		boolean started = false;
 		try {
-			Jp2_source inputSource = new Jp2_source();
+			inputSource = new Jp2_source();
 			Kdu_compressed_source input = null;
-			Jp2_family_src jp2_family_in = new Jp2_family_src();
+			jp2_family_in = new Jp2_family_src();
 			Jp2_locator loc = new Jp2_locator();
 			jp2_family_in.Open(sourceFile, true);
 			inputSource.Open(jp2_family_in, loc);
 			inputSource.Read_header();
 			input = inputSource;
 
-			Kdu_codestream codestream = new Kdu_codestream();
+			codestream = new Kdu_codestream();
 			codestream.Create(input);
-			Kdu_channel_mapping channels = new Kdu_channel_mapping();
+			channels = new Kdu_channel_mapping();
 
 			if (inputSource.Exists())
 				channels.Configure(inputSource, false);
@@ -377,58 +393,131 @@ public class KduExtractProcessorJNI {
 			view_dims.Access_size().Set_x(imageSize.Get_x());
 			view_dims.Access_size().Set_y(imageSize.Get_y());
 
-			int region_buf_size = imageSize.Get_x() * imageSize.Get_y();
-			int[] region_buf = new int[region_buf_size];
-			Kdu_region_decompressor decompressor = new Kdu_region_decompressor();
-			decompressor.Start(codestream, channels, -1, params.getLevelReductionFactor(), 16384, image_dims,
+			decompressor = new Kdu_region_decompressor();
+			started = decompressor.Start(codestream, channels, -1, params.getLevelReductionFactor(), getMaxLayers(params.getQualityLayers()), image_dims,
 					ref_expansion, new Kdu_coords(1, 1), false, Kdu_global.KDU_WANT_OUTPUT_COMPONENTS);
-		
-			Kdu_dims new_region = new Kdu_dims();
-			Kdu_dims incomplete_region = new Kdu_dims();
-			Kdu_coords viewSize = view_dims.Access_size();
-			incomplete_region.Assign(image_dims);
-
-			int[] imgBuffer = new int[viewSize.Get_x() * viewSize.Get_y()];
-			int[] kduBuffer = null;
-			while (decompressor.Process(region_buf, image_dims.Access_pos(), 0, 0, region_buf_size, incomplete_region, new_region)) {
-				Kdu_coords newOffset = new_region.Access_pos();
-				Kdu_coords newSize = new_region.Access_size();
-				newOffset.Subtract(view_dims.Access_pos());
-
-				kduBuffer = region_buf;
-				int imgBuffereIdx = newOffset.Get_x() + newOffset.Get_y() * viewSize.Get_x();
-				int kduBufferIdx = 0;
-				int xDiff = viewSize.Get_x() - newSize.Get_x();
-				for (int j = 0; j < newSize.Get_y(); j++, imgBuffereIdx += xDiff) {
-					for (int i = 0; i < newSize.Get_x(); i++) {
-						imgBuffer[imgBuffereIdx++] = kduBuffer[kduBufferIdx++];
-					}
-				}
-			}
-
-			BufferedImage image = new BufferedImage(imageSize.Get_x(), imageSize.Get_y(), BufferedImage.TYPE_INT_RGB);
-			image.setRGB(0, 0, viewSize.Get_x(), viewSize.Get_y(), imgBuffer, 0, viewSize.Get_x());
+			BufferedImage image = decompress(decompressor, view_dims, getImageType(channels), params.getCancellation());
 			
 			if (params.getRotationDegree() > 0) {				
 				image = ImageProcessingUtils.rotate(image, params.getRotationDegree());
 			}
 			
-			decompressor.Native_destroy();
-			channels.Native_destroy();
-			if (codestream.Exists())
-				codestream.Destroy();
-			inputSource.Native_destroy();
-			input.Native_destroy();
-			jp2_family_in.Native_destroy();
-			
 			return image;
+		} catch (DjatokaCancelledException e) {
+			throw e;
 		} catch (KduException e) {
 			e.printStackTrace();
 			throw new DjatokaException(e);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new DjatokaException(e);
+		} finally {
+			// Cancelled and failed decodes release the decoder and close the file too
+			try {
+				if (started)
+					decompressor.Finish();
+			} catch (KduException e) {
+				e.printStackTrace();
+			} finally {
+				destroy(decompressor, channels, codestream, inputSource, jp2_family_in);
+			}
+		}
+	}
+
+	/**
+	 * Releases the native objects of a decode, skipping those not created
+	 */
+	private static void destroy(Kdu_region_decompressor decompressor, Kdu_channel_mapping channels,
+			Kdu_codestream codestream, Jp2_source inputSource, Jp2_family_src jp2_family_in) {
+		try {
+			if (decompressor != null)
+				decompressor.Native_destroy();
+			if (channels != null)
+				channels.Native_destroy();
+			if (codestream != null && codestream.Exists())
+				codestream.Destroy();
+		} catch (KduException e) {
+			e.printStackTrace();
+		} finally {
+			if (inputSource != null)
+				inputSource.Native_destroy();
+			if (jp2_family_in != null)
+				jp2_family_in.Native_destroy();
+		}
+	}
+
+	/**
+	 * Returns the max_layers argument of Kdu_region_decompressor.Start()
+	 * @param layers number of quality layers to decode, or 0 for all layers
+	 * @return the maximum number of quality layers to decode
+	 */
+	static int getMaxLayers(int layers) {
+		return (layers > 0) ? layers : MAX_LAYERS;
+	}
+
+	/**
+	 * Returns the layout decoded images of the channel mapping are written 
+	 * in: TYPE_BYTE_GRAY for a single channel (without alpha), otherwise 
+	 * TYPE_INT_RGB.
+	 * @param channels configured channel mapping passed to Start()
+	 * @return BufferedImage type of the decoded image
+	 * @throws KduException
+	 */
+	static int getImageType(Kdu_channel_mapping channels) throws KduException {
+		return PixelLayout.getType(channels.Get_num_channels());
+	}
+
+	/**
+	 * Runs a started decompressor to completion, decoding one stripe of at 
+	 * most STRIPE_PIXELS per call into a stripe buffer and copying its rows 
+	 * into the pixel array backing a new image, rather than repacking pixels
+	 * and copying them again through setRGB(). The native Process() copies 
+	 * the array it is given in and out on each call, so it is only given the
+	 * stripe buffer, never the whole frame. Single channel regions are 
+	 * written as 8-bit samples into a TYPE_BYTE_GRAY image, others as packed
+	 * pixels into a TYPE_INT_RGB image. The decode is abandoned between 
+	 * stripes once the token is cancelled; the caller remains responsible 
+	 * for Finish().
+	 * @param decompressor started region decompressor
+	 * @param region region passed to Start()
+	 * @param type image type, as returned by getImageType()
+	 * @param token cancellation token of the request, may be null
+	 * @return decoded region
+	 * @throws KduException
+	 * @throws DjatokaCancelledException if the token was cancelled
+	 */
+	static BufferedImage decompress(Kdu_region_decompressor decompressor, Kdu_dims region, 
+			int type, CancellationToken token) throws KduException, DjatokaCancelledException {
+		Kdu_coords origin = region.Access_pos();
+		int w = region.Access_size().Get_x();
+		int h = region.Access_size().Get_y();
+		boolean gray = type == BufferedImage.TYPE_BYTE_GRAY;
+		BufferedImage image = new BufferedImage(w, h, gray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+		Object data = gray ? (Object) ((DataBufferByte) image.getRaster().getDataBuffer()).getData()
+				: (Object) ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		int stripe = Math.max(w, Math.min(w * h, STRIPE_PIXELS));
+		// With a row gap of 0, new_region is written packed from the start of the stripe
+		int[] pixels = gray ? null : new int[stripe];
+		byte[] samples = gray ? new byte[stripe] : null;
+		Object strip = gray ? (Object) samples : (Object) pixels;
+		int[] offsets = new int[] {0};
+		Kdu_dims incomplete_region = new Kdu_dims();
+		incomplete_region.Assign(region);
+		Kdu_dims new_region = new Kdu_dims();
+		while (gray ? decompressor.Process(samples, offsets, 1, origin, 0, 0, stripe, incomplete_region, new_region)
+				: decompressor.Process(pixels, origin, 0, 0, stripe, incomplete_region, new_region)) {
+			Kdu_coords off = new_region.Access_pos();
+			int nw = new_region.Access_size().Get_x();
+			int nh = new_region.Access_size().Get_y();
+			int idx = (off.Get_y() - origin.Get_y()) * w + off.Get_x() - origin.Get_x();
+			for (int j = 0, k = 0; j < nh; j++, idx += w, k += nw)
+				System.arraycopy(strip, k, data, idx, nw);
+			if (incomplete_region.Is_empty())
+				break;
+			if (token != null)
+				token.check();
 		}
+		return image;
 	}
 
 	private static Kdu_coords getReferenceExpansion(
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.openurl;
+
+import gov.lanl.adore.djatoka.util.ImageRecord;
+import gov.lanl.util.CacheDirectory;
+import gov.lanl.util.HttpDate;
+import info.openurl.oom.OpenURLResponse;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HTTP cache validators and conditional request handling for responses
+ * derived from a source image. A strong ETag is computed from a response 
+ * key (e.g. the tile cache key) and the identity of the source file (path, 
+ * length and modification time), and Last-Modified is the modification 
+ * time of the source file. If the request's If-None-Match or 
+ * If-Modified-Since headers show the client already has the response, a 
+ * 304 Not Modified may be returned before any decoding takes place.
+ * <p>
+ * The Cache-Control policy is defined by the OpenURLJP2KService.cacheControl
+ * property.
+ * @author agent
+ *
+ */
+public class CacheHeaders {
+	private static final String PROPS_KEY_CACHE_CONTROL = "OpenURLJP2KService.cacheControl";
+	private static final String DEFAULT_CACHE_CONTROL = "public, max-age=86400";
+	private static String cacheControl = DEFAULT_CACHE_CONTROL;
+
+	/**
+	 * Sets the Cache-Control policy from the provided properties. An empty 
+	 * value disables the Cache-Control header.
+	 * @param props djatoka properties
+	 */
+	public static void setProperties(Properties props) {
+		String cc = props.getProperty(PROPS_KEY_CACHE_CONTROL);
+		if (cc != null)
+			cacheControl = (cc.trim().length() > 0) ? cc.trim() : null;
+	}
+
+	/**
+	 * Returns a strong entity tag for a response derived from the source file
+	 * @param key identifies the response for the source (e.g. tile cache key)
+	 * @param source the source image file
+	 * @return quoted entity tag, or null if the source file does not exist
+	 */
+	public static String getETag(String key, File source) {
+		if (source == null || !source.isFile())
+			return null;
+		return getETag(key, source.getAbsolutePath(), source.length(), source.lastModified());
+	}
+
+	/**
+	 * Returns a strong entity tag for a response derived from the image file
+	 * of the ImageRecord, using the file length and modification time the 
+	 * image metadata was validated against, if available.
+	 * @param key identifies the response for the source (e.g. tile cache key)
+	 * @param r ImageRecord of the source image
+	 * @return quoted entity tag, or null if the source file does not exist
+	 */
+	public static String getETag(String key, ImageRecord r) {
+		if (r.getImageFile() == null)
+			return null;
+		File source = new File(r.getImageFile());
+		if (r.getFileModified() <= 0)
+			return getETag(key, source);
+		return getETag(key, source.getAbsolutePath(), r.getFileLength(), r.getFileModified());
+	}
+
+	/**
+	 * Returns the modification time of the image file of the ImageRecord, 
+	 * using the time the image metadata was validated against, if available.
+	 * @param r ImageRecord of the source image
+	 * @return modification time of the source, or 0 if not known
+	 */
+	public static long getLastModified(ImageRecord r) {
+		if (r.getFileModified() > 0 || r.getImageFile() == null)
+			return r.getFileModified();
+		return new File(r.getImageFile()).lastModified();
+	}
+
+	private static String getETag(String key, String path, long length, long lastModified) {
+		String id = key + "|" + path + "|" + length + "|" + lastModified;
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA1");
+			return "\"" + CacheDirectory.toHex(md.digest(id.getBytes("UTF-8"))) + "\"";
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Determines whether the client's cached response, as described by the 
+	 * conditional headers of the current request, is still valid.
+	 * If-None-Match takes precedence over If-Modified-Since.
+	 * @param etag entity tag of the current response
+	 * @param lastModified modification time of the current response
+	 * @return true if a 304 Not Modified response may be returned
+	 */
+	public static boolean isNotModified(String etag, long lastModified) {
+		if (etag == null)
+			return false;
+		String inm = RequestContext.getHeader("If-None-Match");
+		if (inm != null) {
+			for (String t : inm.split(",")) {
+				t = t.trim();
+				if (t.startsWith("W/"))
+					t = t.substring(2);
+				if (t.equals("*") || t.equals(etag))
+					return true;
+			}
+			return false;
+		}
+		long ims = HttpDate.parseHttpDate(RequestContext.getHeader("If-Modified-Since"));
+		// HTTP dates have a resolution of one second
+		return ims >= 0 && lastModified / 1000 <= ims / 1000;
+	}
+
+	/**
+	 * Adds the validator and Cache-Control headers to a response header map
+	 * @param headers response headers
+	 * @param etag entity tag of the response
+	 * @param lastModified modification time of the response
+	 */
+	public static void addHeaders(Map<String, String> headers, String etag, long lastModified) {
+		if (etag == null)
+			return;
+		headers.put("ETag", etag);
+		headers.put("Last-Modified", HttpDate.getHttpDate(lastModified));
+		if (cacheControl != null)
+			headers.put("Cache-Control", cacheControl);
+	}
+
+	/**
+	 * Returns a 304 Not Modified response carrying the validator headers
+	 * @param etag entity tag of the response
+	 * @param lastModified modification time of the response
+	 * @return a 304 Not Modified response
+	 */
+	public static OpenURLResponse getNotModifiedResponse(String etag, long lastModified) {
+		HashMap<String, String> header_map = new HashMap<String, String>();
+		header_map.put("Date", HttpDate.getHttpDate());
+		addHeaders(header_map, etag, lastModified);
+		return new OpenURLResponse(HttpServletResponse.SC_NOT_MODIFIED, null, new byte[0], header_map);
+	}
+}
@@ -109,10 +109,17 @@ public class OpenURLJP2KMetadata implements Service, FormatConstants {
 		String responseFormat = RESPONSE_TYPE;
 		int status = HttpServletResponse.SC_OK;
 		ByteArrayOutputStream baos =  new ByteArrayOutputStream();
+		String etag = null;
+		long lastModified = 0;
 	    try {
 			baos = new ByteArrayOutputStream();
 			IExtract jp2 = new KduExtractExe();
 			ImageRecord r = ReferentManager.getImageRecord(contextObject.getReferent());
+			// The image file identity was validated when the record was resolved
+			etag = CacheHeaders.getETag(SVC_ID, r);
+			lastModified = CacheHeaders.getLastModified(r);
+			if (CacheHeaders.isNotModified(etag, lastModified))
+				return CacheHeaders.getNotModifiedResponse(etag, lastModified);
 			r = jp2.getMetadata(r);
 			StringBuffer sb = new StringBuffer();
 			sb.append("{");
@@ -148,6 +155,8 @@ public class OpenURLJP2KMetadata implements Service, FormatConstants {
 		HashMap<String, String> header_map = new HashMap<String, String>();
 		header_map.put("Content-Length", baos.size() + "");
 		header_map.put("Date", HttpDate.getHttpDate());
+		if (status == HttpServletResponse.SC_OK)
+			CacheHeaders.addHeaders(header_map, etag, lastModified);
 		return new OpenURLResponse(status, responseFormat, baos.toByteArray(), header_map);
 	}
 }
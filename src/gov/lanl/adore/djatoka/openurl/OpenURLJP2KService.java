@@ -23,17 +23,37 @@
 
 package gov.lanl.adore.djatoka.openurl;
 
+import gov.lanl.adore.djatoka.DjatokaCancelledException;
 import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+import gov.lanl.adore.djatoka.CancellationToken;
+import gov.lanl.adore.djatoka.DecodeScheduler;
 import gov.lanl.adore.djatoka.DjatokaException;
 import gov.lanl.adore.djatoka.DjatokaExtractProcessor;
+import gov.lanl.adore.djatoka.DjatokaOverloadException;
+import gov.lanl.adore.djatoka.IExtract;
 import gov.lanl.adore.djatoka.io.FormatConstants;
 import gov.lanl.adore.djatoka.kdu.KduExtractExe;
+import gov.lanl.adore.djatoka.kdu.KduExtractPool;
+import gov.lanl.adore.djatoka.kdu.jni.KduDecoderJNI;
 import gov.lanl.adore.djatoka.plugin.ITransformPlugIn;
+import gov.lanl.adore.djatoka.util.DecodeParamNormalizer;
+import gov.lanl.adore.djatoka.util.DecodeThreads;
 import gov.lanl.adore.djatoka.util.IOUtils;
 import gov.lanl.adore.djatoka.util.ImageRecord;
+import gov.lanl.adore.djatoka.util.ImageRecordCache;
+import gov.lanl.adore.djatoka.util.ImageResampler;
+import gov.lanl.adore.djatoka.util.PixelLayout;
+import gov.lanl.util.ByteBufferCache;
+import gov.lanl.util.ByteBufferInputStream;
+import gov.lanl.util.CacheDirectory;
 import gov.lanl.util.ConcurrentEvictionFileDelete;
 import gov.lanl.util.ConcurrentLinkedHashMap;
+import gov.lanl.util.DiskSpaceGuard;
+import gov.lanl.util.FileResponseInputStream;
+import gov.lanl.util.FileSizeWeigher;
 import gov.lanl.util.HttpDate;
+import gov.lanl.util.SingleFlight;
+import gov.lanl.util.StreamingInputStream;
 import info.openurl.oom.ContextObject;
 import info.openurl.oom.OpenURLRequest;
 import info.openurl.oom.OpenURLRequestProcessor;
@@ -43,15 +63,23 @@ import info.openurl.oom.config.ClassConfig;
 import info.openurl.oom.config.OpenURLConfig;
 import info.openurl.oom.entities.ServiceType;
 
+import java.awt.Dimension;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.util.HashMap;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -71,12 +99,40 @@ public class OpenURLJP2KService implements Service, FormatConstants {
     private static final String PROPS_KEY_IMPL_CLASS = "OpenURLJP2KService.referentResolverImpl";
     private static final String PROPS_KEY_CACHE_ENABLED = "OpenURLJP2KService.cacheEnabled";
     private static final String PROPS_KEY_CACHE_TMPDIR = "OpenURLJP2KService.cacheTmpDir";
+    private static final String PROPS_KEY_CACHE_ROOT = "OpenURLJP2KService.cacheRoot";
+    private static final String PROPS_KEY_CACHE_MAX_BYTES = "OpenURLJP2KService.cacheMaxBytes";
+    private static final String PROPS_KEY_CACHE_LOW_BYTES = "OpenURLJP2KService.cacheLowWaterBytes";
+    private static final String PROPS_KEY_CACHE_MIN_FREE = "OpenURLJP2KService.cacheMinFreeBytes";
     private static final String PROPS_KEY_TRANSFORM = "OpenURLJP2KService.transformPlugin";
     private static final String PROPS_KEY_CACHE_SIZE = "OpenURLJP2KService.cacheSize";
     private static final String PROP_KEY_CACHE_MAX_PIXELS = "OpenURLJP2KService.cacheImageMaxPixels";
+    private static final String PROPS_KEY_MEMCACHE_SIZE = "OpenURLJP2KService.memoryCacheSize";
+    private static final String PROPS_KEY_MEMCACHE_MAX_TILE = "OpenURLJP2KService.memoryCacheMaxTileSize";
+    private static final String PROPS_KEY_MEMCACHE_PROMOTE = "OpenURLJP2KService.memoryCachePromoteHits";
+    private static final String PROPS_KEY_MEMCACHE_DIRECT = "OpenURLJP2KService.memoryCacheDirect";
+    private static final String PROPS_KEY_INFLIGHT_TIMEOUT = "OpenURLJP2KService.inflightTimeout";
+    private static final String PROPS_KEY_REQUEST_TIMEOUT = "OpenURLJP2KService.requestTimeout";
+    private static final String PROPS_KEY_STREAM = "OpenURLJP2KService.streamResponses";
+    private static final String PROPS_KEY_EXTRACT_POOL = "OpenURLJP2KService.extractPool";
+    private static final String PROPS_KEY_EXTRACT_IMPL = "OpenURLJP2KService.extractImpl";
+    private static final String PROPS_KEY_MAX_DECODES = "OpenURLJP2KService.maxConcurrentDecodes";
+    private static final String PROPS_KEY_MAX_QUEUED = "OpenURLJP2KService.maxQueuedDecodes";
+    private static final String PROPS_KEY_MAX_WAIT = "OpenURLJP2KService.maxDecodeWait";
+    private static final String PROPS_KEY_MAX_THREADS = "OpenURLJP2KService.maxDecodeThreads";
+    private static final String PROPS_KEY_PREVIEW_MAX_PIXELS = "OpenURLJP2KService.previewMaxPixels";
+    private static final String PROPS_KEY_PREVIEW_LAYERS = "OpenURLJP2KService.previewLayers";
+    private static final String PROPS_KEY_SCALING_FILTER = "OpenURLJP2KService.scalingFilter";
+    private static final String DEFAULT_MAX_WAIT = "10000";
+    private static final String PROPS_KEY_METADATA_CACHE_SIZE = "OpenURLJP2KService.metadataCacheSize";
     private static final String SVC_ID = "info:lanl-repo/svc/getRegion";
     private static final String DEFAULT_CACHE_SIZE = "1000";
+    private static final String DEFAULT_CACHE_ROOT = "djatoka-tiles";
     private static final int DEFAULT_CACHE_MAXPIXELS = 100000;
+    private static final String DEFAULT_MEMCACHE_SIZE = "0";
+    private static final String DEFAULT_MEMCACHE_MAX_TILE = "262144";
+    private static final String DEFAULT_MEMCACHE_PROMOTE = "2";
+    private static final String DEFAULT_INFLIGHT_TIMEOUT = "60000";
+    private static final String DEFAULT_REQUEST_TIMEOUT = "30000";
 
     private static String implClass = null;
     private static Properties props = new Properties();
@@ -86,8 +142,22 @@ public class OpenURLJP2KService implements Service, FormatConstants {
     private static ITransformPlugIn transform;
     private static String cacheDir = null;
     private static ConcurrentLinkedHashMap<String,String> tileCache;
+    private static CacheDirectory tileStore;
+    private static DiskSpaceGuard tileGuard;
+    private static ByteBufferCache memoryCache;
+    private static SingleFlight<String, String> inflight = new SingleFlight<String, String>();
+    private static long inflightTimeout = Long.parseLong(DEFAULT_INFLIGHT_TIMEOUT);
+    private static long requestTimeout = Long.parseLong(DEFAULT_REQUEST_TIMEOUT);
     private static DjatokaExtractProcessor extractor;
+    private static TileDeriver deriver;
+    private static DecodeScheduler scheduler;
+    private static IExtract decoder;
+    private static TileCacheWarmer warmer;
+    private static boolean streamResponses = true;
     private static int maxPixels = DEFAULT_CACHE_MAXPIXELS;
+    private static long previewMaxPixels = 0;
+    private static int previewLayers = 0;
+    private static KduExtractExe metadata = new KduExtractExe();
 	
 	/**
 	 * Construct an info:lanl-repo/svc/getRegion web service class. Initializes 
@@ -110,7 +180,39 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                 	cacheTiles = Boolean.parseBoolean(props.getProperty(PROPS_KEY_CACHE_ENABLED));
                 if (cacheTiles) {
                 	int cacheSize = Integer.parseInt(props.getProperty(PROPS_KEY_CACHE_SIZE,DEFAULT_CACHE_SIZE));
-                	tileCache = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.SECOND_CHANCE, cacheSize, new ConcurrentEvictionFileDelete());
+                	long memSize = Long.parseLong(props.getProperty(PROPS_KEY_MEMCACHE_SIZE, DEFAULT_MEMCACHE_SIZE));
+                	if (memSize > 0) {
+                		int maxTile = Integer.parseInt(props.getProperty(PROPS_KEY_MEMCACHE_MAX_TILE, DEFAULT_MEMCACHE_MAX_TILE));
+                		int promote = Integer.parseInt(props.getProperty(PROPS_KEY_MEMCACHE_PROMOTE, DEFAULT_MEMCACHE_PROMOTE));
+                		boolean direct = Boolean.parseBoolean(props.getProperty(PROPS_KEY_MEMCACHE_DIRECT, "true"));
+                		memoryCache = new ByteBufferCache(memSize, maxTile, promote, direct);
+                	}
+                	// Tiles evicted from disk must also be dropped from the memory tier
+                	// Tiles are weighed by file size; 0 bytes limits by tile count alone
+                	long maxBytes = Long.parseLong(props.getProperty(PROPS_KEY_CACHE_MAX_BYTES, "0"));
+                	if (maxBytes <= 0)
+                		maxBytes = Long.MAX_VALUE;
+                	tileCache = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.SECOND_CHANCE, cacheSize, new ConcurrentEvictionFileDelete<String, String>() {
+                		public void onEviction(String key, String value) {
+                			super.onEviction(key, value);
+                			if (memoryCache != null)
+                				memoryCache.remove(key);
+                			if (deriver != null)
+                				deriver.remove(key);
+                		}
+                	}, new FileSizeWeigher(), maxBytes);
+                	if (maxBytes != Long.MAX_VALUE)
+                		tileCache.setWeightedCapacity(maxBytes, Long.parseLong(props.getProperty(PROPS_KEY_CACHE_LOW_BYTES, String.valueOf(maxBytes / 10 * 9))));
+                	// Tiles persist across restarts; index the existing tiles without blocking requests
+                	String cacheRoot = props.getProperty(PROPS_KEY_CACHE_ROOT);
+                	if (cacheRoot == null)
+                		cacheRoot = new File(cacheDir != null ? cacheDir : System.getProperty("java.io.tmpdir"), DEFAULT_CACHE_ROOT).getAbsolutePath();
+                	tileStore = new CacheDirectory(new File(cacheRoot));
+                	long minFree = Long.parseLong(props.getProperty(PROPS_KEY_CACHE_MIN_FREE, "0"));
+                	if (minFree > 0)
+                		tileGuard = new DiskSpaceGuard(tileStore.getRoot(), minFree, tileCache);
+                	tileStore.rebuildInBackground(tileCache);
+                	inflightTimeout = Long.parseLong(props.getProperty(PROPS_KEY_INFLIGHT_TIMEOUT, DEFAULT_INFLIGHT_TIMEOUT));
                 }
                 if (props.getProperty(PROPS_KEY_TRANSFORM) != null) {
                 	transformCheck = true;
@@ -118,10 +220,52 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                 	transform = (ITransformPlugIn) Class.forName(transClass).newInstance();
                 	transform.setup(props);
                 }
+                CacheHeaders.setProperties(props);
+                requestTimeout = Long.parseLong(props.getProperty(PROPS_KEY_REQUEST_TIMEOUT, DEFAULT_REQUEST_TIMEOUT));
+                if (props.getProperty(PROPS_KEY_METADATA_CACHE_SIZE) != null)
+                	ImageRecordCache.setMaxSize(Integer.parseInt(props.getProperty(PROPS_KEY_METADATA_CACHE_SIZE)));
+                if (props.getProperty(PROPS_KEY_STREAM) != null)
+                	streamResponses = Boolean.parseBoolean(props.getProperty(PROPS_KEY_STREAM));
                 if (props.getProperty(PROP_KEY_CACHE_MAX_PIXELS) != null)
                 	maxPixels = Integer.parseInt(props.getProperty(PROP_KEY_CACHE_MAX_PIXELS));
-                extractor = new DjatokaExtractProcessor(new KduExtractExe());
+                if (props.getProperty(PROPS_KEY_PREVIEW_LAYERS) != null) {
+                	previewLayers = Integer.parseInt(props.getProperty(PROPS_KEY_PREVIEW_LAYERS));
+                	previewMaxPixels = Long.parseLong(props.getProperty(PROPS_KEY_PREVIEW_MAX_PIXELS, "0"));
+                }
+                if (props.getProperty(PROPS_KEY_SCALING_FILTER) != null)
+                	ImageResampler.setDefaultFilter(ImageResampler.Filter.valueOf(props.getProperty(PROPS_KEY_SCALING_FILTER).trim().toUpperCase()));
+                if (props.getProperty(PROPS_KEY_MAX_THREADS) != null)
+                	DecodeThreads.setMaxThreads(Integer.parseInt(props.getProperty(PROPS_KEY_MAX_THREADS)));
+                // Decode in long running worker processes, or in-process using a configured
+                // implementation, rather than a kdu_expand per request
+                IExtract impl;
+                if (Boolean.parseBoolean(props.getProperty(PROPS_KEY_EXTRACT_POOL, "false")))
+                	impl = new KduExtractPool(props);
+                else if (props.getProperty(PROPS_KEY_EXTRACT_IMPL) != null)
+                	impl = newExtract(props.getProperty(PROPS_KEY_EXTRACT_IMPL), props);
+                else
+                	impl = new KduExtractExe();
+                decoder = impl;
+                // Bound concurrent decodes; excess requests queue briefly, then are shed
+                int cpus = Runtime.getRuntime().availableProcessors();
+                int maxDecodes = Integer.parseInt(props.getProperty(PROPS_KEY_MAX_DECODES, String.valueOf(2 * cpus)));
+                // Decodes beyond the number of workers would wait for a worker outside the queue
+                if (maxDecodes > 0 && impl instanceof KduExtractPool)
+                	maxDecodes = Math.min(maxDecodes, ((KduExtractPool) impl).getSize());
+                if (maxDecodes > 0) {
+                	int maxQueued = Integer.parseInt(props.getProperty(PROPS_KEY_MAX_QUEUED, String.valueOf(8 * maxDecodes)));
+                	long maxWait = Long.parseLong(props.getProperty(PROPS_KEY_MAX_WAIT, DEFAULT_MAX_WAIT));
+                	scheduler = new DecodeScheduler(impl, maxDecodes, maxQueued, maxWait);
+                	impl = scheduler;
+                }
+                extractor = new DjatokaExtractProcessor(impl);
+                if (cacheTiles && TileDeriver.isEnabled(props))
+                	deriver = new TileDeriver(props, tileCache, extractor);
                 init = true;
+                if (cacheTiles && TileCacheWarmer.isConfigured(props)) {
+                	warmer = new TileCacheWarmer(props);
+                	warmer.start(props);
+                }
         	}
         } catch (IOException e) {
         	logger.error(e,e);
@@ -187,9 +331,24 @@ public class OpenURLJP2KService implements Service, FormatConstants {
 			if (clayer > 0)
 			    params.setCompositingLayer(clayer);
 		}
+		if (kev.containsKey("layers") && kev.get("layers") != null)
+			params.setQualityLayers(Integer.parseInt(kev.get("layers")));
 		responseFormat = format;
+		// Decodes are abandoned once the request is cancelled or passes its deadline
+		final CancellationToken token = RequestContext.getCancellation();
+		if (token != null) {
+			if (requestTimeout > 0)
+				token.setTimeout(requestTimeout);
+			params.setCancellation(token);
+		}
 
 		byte[] bytes = null;
+		ByteBuffer buffer = null;
+		FileResponseInputStream tileStream = null;
+		StreamingInputStream stream = null;
+		String etag = null;
+		long lastModified = 0;
+		int retryAfter = 0;
 		if (responseFormat == null) {
 			try {
 				bytes = ("Output Format Not Supported").getBytes("UTF-8");
@@ -231,48 +390,60 @@ public class OpenURLJP2KService implements Service, FormatConstants {
 							transform.setInstanceProps(instProps);
 						params.setTransform(transform);
 					}
-					if (!cacheTiles || !isCacheable(params)) {
+					// Equivalent requests are decoded, cached and revalidated identically
+					DjatokaDecodeParam c = normalize(r, params);
+					final String key = getTileHash(r, c, c != params) + "." + getExtension(format);
+					params = c;
+					if (!transformCheck || !params.getTransform().isTransformable()) {
+						// Responses which do not vary by requester may be revalidated by clients;
+						// the source file was validated when its metadata was looked up
+						etag = CacheHeaders.getETag(key, r);
+						lastModified = CacheHeaders.getLastModified(r);
+						if (CacheHeaders.isNotModified(etag, lastModified))
+							return CacheHeaders.getNotModifiedResponse(etag, lastModified);
+					}
+					if ((!cacheTiles || !isCacheable(params)) && streamResponses) {
+						stream = extractStream(r, params, format);
+					} else if (!cacheTiles || !isCacheable(params)) {
 						ByteArrayOutputStream baos = new ByteArrayOutputStream();
 						extractor.extractImage(r.getImageFile(), baos, params, format);
 						bytes = baos.toByteArray();
 						baos.close();
 					} else {
-						String ext = getExtension(format);
-						String hash = getTileHash(r, params);
-						String file = tileCache.get(hash + ext);
+						String file = lookupTile(key);
 						File f;
-						if (file == null
-								|| (file != null
-										&& !(f = new File(file)).exists() 
-										    && f.length() > 0)) {
-							if (cacheDir != null)
-								f = File.createTempFile("cache" + hash.hashCode() + "-", "." + ext, new File(cacheDir));
-							else
-								f = File.createTempFile("cache" + hash.hashCode() + "-", "." + ext);
-							f.deleteOnExit();
-							file = f.getAbsolutePath();
-							extractor.extractImage(r.getImageFile(), file, params, format);
-							boolean cacheTile = false;
-							synchronized (tileCache) {
-								String tilePath = tileCache.get(hash + ext);
-								if (tilePath == null) {
-									tileCache.put(hash + ext, file);
-									cacheTile = true;
-								} else {
-									cacheTile = false;
-								}
-							}
-							bytes = IOUtils.getBytesFromFile(f);
-							if (cacheTile)
-								logger.debug("makingTile: " + file + " " + bytes.length + " params: " + params);
-							else {
-								// For simultaneous request on separate thread, delete current temp file.
-								f.delete();
-								logger.debug("tempTile: " + file + " " + bytes.length + " params: " + params);
+						if (file != null && memoryCache != null 
+								&& (buffer = memoryCache.get(key)) != null) {
+							logger.debug("memoryCache: " + file + " " + buffer.remaining());
+						} else if (file == null
+								|| !(f = new File(file)).exists() 
+								|| f.length() == 0) {
+							boolean space = tileGuard == null || tileGuard.ensure(0);
+							if (!space && streamResponses) {
+								// Cache volume is full, serve the tile without caching it
+								stream = extractStream(r, params, format);
+							} else if (!space) {
+								ByteArrayOutputStream baos = new ByteArrayOutputStream();
+								extractor.extractImage(r.getImageFile(), baos, params, format);
+								bytes = baos.toByteArray();
+								baos.close();
+							} else {
+								// Identical requests arriving while this tile is being 
+								// generated wait for the first one rather than decoding again.
+								// The tile is sent once cached, so a slow client never holds
+								// up the tile, or the requests waiting for it.
+								file = executeTile(key, r, params, format, token);
+								tileStream = new FileResponseInputStream(new File(file), true);
 							}
 						} else {
-							bytes = IOUtils.getBytesFromFile(new File(file));
-							logger.debug("tileCache: " + file + " " + bytes.length);
+							if (memoryCache != null && memoryCache.admit(key, new File(file).length())) {
+								memoryCache.put(key, IOUtils.getBytesFromFile(new File(file)));
+								logger.debug("promoted: " + file + " " + memoryCache);
+							}
+							// Disk tier hit; the tile may be evicted while it is sent, so it 
+							// is streamed from the open channel rather than reopened by path
+							tileStream = new FileResponseInputStream(new File(file), true);
+							logger.debug("tileCache: " + file + " " + tileStream.getLength());
 						}
 					}
 				}
@@ -281,6 +452,17 @@ public class OpenURLJP2KService implements Service, FormatConstants {
 			    bytes = e.getMessage().getBytes();
 				responseFormat = "text/plain";
 				status = HttpServletResponse.SC_NOT_FOUND;
+			} catch (DjatokaOverloadException e) {
+				logger.warn(e.getMessage());
+			    bytes = e.getMessage().getBytes();
+				responseFormat = "text/plain";
+				status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+				retryAfter = e.getRetryAfter();
+			} catch (DjatokaCancelledException e) {
+				logger.debug("Decode abandoned: " + e.getMessage());
+			    bytes = e.getMessage().getBytes();
+				responseFormat = "text/plain";
+				status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
 			} catch (DjatokaException e) {
 				logger.error(e,e);
 			    bytes = e.getMessage().getBytes();
@@ -298,6 +480,28 @@ public class OpenURLJP2KService implements Service, FormatConstants {
 				status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
 			}
 		}
+		if (buffer != null) {
+			// Memory tier hit; serve straight from the cached buffer
+			HashMap<String, String> header_map = new HashMap<String, String>();
+			header_map.put("Content-Length", buffer.remaining() + "");
+			header_map.put("Date", HttpDate.getHttpDate());
+			CacheHeaders.addHeaders(header_map, etag, lastModified);
+			return new OpenURLResponse(status, responseFormat, new ByteBufferInputStream(buffer), header_map);
+		}
+		if (stream != null) {
+			// Length is unknown until the image is written, so none is sent
+			HashMap<String, String> header_map = new HashMap<String, String>();
+			header_map.put("Date", HttpDate.getHttpDate());
+			CacheHeaders.addHeaders(header_map, etag, lastModified);
+			return new OpenURLResponse(status, responseFormat, stream, header_map);
+		}
+		if (tileStream != null) {
+			HashMap<String, String> header_map = new HashMap<String, String>();
+			header_map.put("Content-Length", tileStream.getLength() + "");
+			header_map.put("Date", HttpDate.getHttpDate());
+			CacheHeaders.addHeaders(header_map, etag, lastModified);
+			return new OpenURLResponse(status, responseFormat, tileStream, header_map);
+		}
 		if (bytes == null || bytes.length == 0) {
 		    bytes = "".getBytes();
 			responseFormat = "text/plain";
@@ -307,17 +511,373 @@ public class OpenURLJP2KService implements Service, FormatConstants {
 		HashMap<String, String> header_map = new HashMap<String, String>();
 		header_map.put("Content-Length", bytes.length + "");
 		header_map.put("Date", HttpDate.getHttpDate());
+		if (status == HttpServletResponse.SC_OK)
+			CacheHeaders.addHeaders(header_map, etag, lastModified);
+		if (retryAfter > 0)
+			header_map.put("Retry-After", retryAfter + "");
 		return new OpenURLResponse(status, responseFormat, bytes, header_map);
 	}
 	
-	private boolean isCacheable(DjatokaDecodeParam params) {
+	/**
+	 * Returns the in-memory tile tier, or null if it is disabled. Useful for
+	 * reporting hit, miss and promotion counts.
+	 * @return the in-memory tile tier
+	 */
+	public static ByteBufferCache getMemoryCache() {
+		return memoryCache;
+	}
+	
+	/**
+	 * Returns a JSON object describing the state of the decode scheduler, 
+	 * tile caches and pixel layout conversions, for monitoring.
+	 * @return JSON object describing the state of the service
+	 */
+	public static String getStatus() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("{");
+		sb.append("\n\"scheduler\": " + (scheduler != null ? scheduler.toString() : "null") + ",");
+		sb.append("\n\"decoder\": " + (decoder instanceof KduExtractExe || decoder == null ? "null" : decoder.toString()) + ",");
+		sb.append("\n\"tileCache\": " + (tileCache != null ? "{\"entries\": \"" + tileCache.size() + "\", \"bytes\": \"" + tileCache.weightedSize() + "\"}" : "null") + ",");
+		sb.append("\n\"memoryCache\": " + (memoryCache != null ? memoryCache.toString() : "null") + ",");
+		sb.append("\n\"inflight\": " + inflight.toString() + ",");
+		sb.append("\n\"deriver\": " + (deriver != null ? deriver.toString() : "null") + ",");
+		sb.append("\n\"metadataCache\": " + ImageRecordCache.getStatus() + ",");
+		sb.append("\n\"pixelLayout\": " + PixelLayout.getStatus());
+		sb.append("\n}");
+		return sb.toString();
+	}
+	
+	/**
+	 * Creates the named IExtract implementation, passing it the service 
+	 * properties if it provides a Properties constructor.
+	 */
+	private static IExtract newExtract(String implClass, Properties props) throws Exception {
+		Class<?> c = Class.forName(implClass);
+		try {
+			return (IExtract) c.getConstructor(Properties.class).newInstance(props);
+		} catch (NoSuchMethodException e) {
+			return (IExtract) c.newInstance();
+		}
+	}
+	
+	/**
+	 * Returns the path of the cached tile, adopting a tile found in the tile 
+	 * store if it has not yet been indexed, or null if the tile is not cached.
+	 */
+	private static String lookupTile(String key) {
+		String file = tileCache.get(key);
+		if (file == null && !tileStore.isRebuilt()) {
+			File f = tileStore.lookup(key);
+			if (f != null) {
+				String prev = tileCache.putIfAbsent(key, f.getAbsolutePath());
+				file = (prev != null) ? prev : f.getAbsolutePath();
+			}
+		}
+		return file;
+	}
+	
+	/**
+	 * Extracts the requested region to a new tile in the tile store and adds 
+	 * it to the tile cache. The tile is derived from cached higher resolution
+	 * tiles instead, when they cover the region and doing so is cheaper than
+	 * decoding. Only one thread at a time runs this for a given tile.
+	 * @return absolute path of the cached tile
+	 */
+	private static String makeTile(ImageRecord r, DjatokaDecodeParam params, 
+			String format, String key) throws Exception {
+		File tmp = tileStore.createTempFile(key);
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp));
+		String ext = getExtension(format);
+		boolean derived = false;
+		try {
+			derived = deriver != null && deriver.derive(r, params, format, ext, os);
+			if (!derived) {
+				long start = System.nanoTime();
+				extractor.extractImage(r.getImageFile(), os, params, format);
+				if (deriver != null)
+					deriver.decoded(System.nanoTime() - start);
+			}
+			os.close();
+		} catch (Exception e) {
+			os.close();
+			tmp.delete();
+			throw e;
+		}
+		File f = tileStore.commit(tmp, key);
+		String file = f.getAbsolutePath();
+		// Path is derived from the key, so a stale entry is simply replaced
+		tileCache.put(key, file);
+		// Only decoded tiles are derivation sources
+		if (deriver != null && !derived)
+			deriver.add(r, params, ext, key);
+		logger.debug("makingTile: " + file + " " + f.length() + " params: " + params);
+		return file;
+	}
+	
+	/**
+	 * Returns a response stream which extracts the region directly to the client
+	 */
+	private static StreamingInputStream extractStream(final ImageRecord r, 
+			final DjatokaDecodeParam params, final String format) {
+		return new StreamingInputStream() {
+			public void writeTo(OutputStream out) throws IOException {
+				try {
+					extractor.extractImage(r.getImageFile(), out, params, format);
+				} catch (Exception e) {
+					throw toIOException(e);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Generates the tile, or waits for an identical request already 
+	 * generating it. A waiter gives up once its own request is cancelled or
+	 * passes its deadline. The decode runs under a token shared by the 
+	 * requests for the tile (see TileFlight), so it is abandoned only once 
+	 * the request running it is cancelled and no other request is waiting 
+	 * for the tile; a waiter whose request is still live then generates the
+	 * tile itself.
+	 * @param token cancellation token of this request, may be null
+	 * @return absolute path of the cached tile
+	 */
+	private static String executeTile(final String key, final ImageRecord r, 
+			final DjatokaDecodeParam params, final String format, 
+			final CancellationToken token) throws Exception {
+		while (true) {
+			final TileFlight flight = TileFlight.join(key);
+			final boolean[] leader = new boolean[1];
+			final CancellationToken.Waiter waiter = (token != null) ? token.startWait() : null;
+			long wait = (token != null) ? Math.min(inflightTimeout, token.getRemaining()) : inflightTimeout;
+			try {
+				return inflight.execute(key, new Callable<String>() {
+					public String call() throws Exception {
+						leader[0] = true;
+						if (waiter != null)
+							waiter.done();
+						return flight.lead(key, r, params, format, token);
+					}
+				}, wait);
+			} catch (DjatokaCancelledException e) {
+				if (leader[0] || token == null || token.isCancelled())
+					throw e;
+			} catch (InterruptedException e) {
+				if (waiter == null || !waiter.isInterrupted())
+					Thread.currentThread().interrupt();
+				if (token != null)
+					token.check();
+				throw e;
+			} catch (TimeoutException e) {
+				if (token != null)
+					token.check();
+				throw e;
+			} finally {
+				if (waiter != null)
+					waiter.done();
+				if (!leader[0])
+					flight.leave();
+			}
+		}
+	}
+	
+	/**
+	 * Cancellation shared by the requests for a tile being generated. The 
+	 * tile's decode runs under the flight's token, which is cancelled once
+	 * the request running the decode is cancelled and no other request is 
+	 * still waiting for the tile, so a cacheable decode is not thrown away
+	 * while it is still wanted.
+	 */
+	private static final class TileFlight {
+		private static final ConcurrentHashMap<String, TileFlight> flights = new ConcurrentHashMap<String, TileFlight>();
+		private final CancellationToken token = new CancellationToken();
+		private int waiting = 0;
+		private boolean leaderCancelled = false;
+
+		/**
+		 * Returns the flight of the tile, counting the caller as waiting for it
+		 */
+		static TileFlight join(String key) {
+			while (true) {
+				TileFlight f = flights.get(key);
+				if (f == null) {
+					f = new TileFlight();
+					TileFlight prev = flights.putIfAbsent(key, f);
+					if (prev != null)
+						f = prev;
+				}
+				synchronized (f) {
+					if (!f.token.isCancelled()) {
+						f.waiting++;
+						return f;
+					}
+				}
+				// Abandoned flight; start another
+				flights.remove(key, f);
+			}
+		}
+
+		/**
+		 * Stops counting the caller as waiting for the tile
+		 */
+		void leave() {
+			boolean cancel;
+			synchronized (this) {
+				cancel = --waiting == 0 && leaderCancelled;
+			}
+			if (cancel)
+				token.cancel("All requests for the tile were cancelled");
+		}
+
+		/**
+		 * Generates the tile under the flight's token on behalf of every 
+		 * request waiting for it
+		 * @param own cancellation token of the request running the decode, may be null
+		 */
+		String lead(String key, ImageRecord r, DjatokaDecodeParam params, 
+				String format, CancellationToken own) throws Exception {
+			synchronized (this) {
+				waiting--;
+			}
+			Runnable cancelled = new Runnable() {
+				public void run() {
+					boolean cancel;
+					synchronized (TileFlight.this) {
+						leaderCancelled = true;
+						cancel = waiting == 0;
+					}
+					if (cancel)
+						token.cancel("All requests for the tile were cancelled");
+				}
+			};
+			if (own != null)
+				own.addCallback(cancelled);
+			params.setCancellation(token);
+			try {
+				return makeTile(r, params, format, key);
+			} finally {
+				if (own != null)
+					own.removeCallback(cancelled);
+				params.setCancellation(own);
+				flights.remove(key, this);
+				token.dispose();
+			}
+		}
+	}
+	
+	/**
+	 * Generates and caches a tile ahead of user requests, using the same tile 
+	 * cache key as the live request path.
+	 * @param r ImageRecord of the source image
+	 * @param params decode parameters of the tile, as a viewer would request it
+	 * @param format mimetype of the tile
+	 * @param warmer warmer whose admission the decode waits for
+	 * @return true if the tile was generated, false if already cached, not 
+	 * cacheable or warming was stopped
+	 * @throws Exception
+	 */
+	static boolean warmTile(final ImageRecord r, final DjatokaDecodeParam params, 
+			final String format, TileCacheWarmer warmer) throws Exception {
+		if (!cacheTiles)
+			return false;
+		if (transformCheck && transform != null)
+			params.setTransform(transform);
+		final DjatokaDecodeParam p = normalize(r, params);
+		if (!isCacheable(p))
+			return false;
+		final String key = getTileHash(r, p, p != params) + "." + getExtension(format);
+		String file = lookupTile(key);
+		if (file != null && new File(file).length() > 0)
+			return false;
+		if (tileGuard != null && !tileGuard.ensure(0))
+			throw new IOException("Insufficient disk space to cache tile in " + tileStore.getRoot().getAbsolutePath());
+		if (!warmer.awaitAdmission())
+			return false;
+		inflight.execute(key, new Callable<String>() {
+			public String call() throws Exception {
+				return makeTile(r, p, format, key);
+			}
+		}, inflightTimeout);
+		return true;
+	}
+	
+	/**
+	 * Returns true if no request is waiting for a decode slot and fewer than
+	 * maxActive decodes are in progress, or if decodes are not scheduled.
+	 * @param maxActive number of decodes in progress considered busy
+	 * @return true if a background decode may start
+	 */
+	static boolean isDecoderIdle(int maxActive) {
+		return scheduler == null || (scheduler.getQueueDepth() == 0 && scheduler.getActiveCount() < maxActive);
+	}
+	
+	/**
+	 * Stops tile warming and releases the resources held by the decoder: 
+	 * the worker processes of a KduExtractPool and the open codestreams of
+	 * a KduDecoderJNI. Called when the web application is stopped.
+	 */
+	public static synchronized void shutdown() {
+		if (warmer != null)
+			warmer.stop();
+		warmer = null;
+		if (decoder instanceof KduExtractPool)
+			((KduExtractPool) decoder).shutdown();
+		else if (decoder instanceof KduDecoderJNI)
+			((KduDecoderJNI) decoder).clear();
+	}
+	
+	/**
+	 * Returns the canonical form of the decode parameters, or the parameters
+	 * as requested if the image metadata is unavailable or the region selects
+	 * no pixels; such requests are left for the extractor to handle as before.
+	 */
+	private static DjatokaDecodeParam normalize(ImageRecord r, DjatokaDecodeParam params) throws DjatokaException {
+		if (!loadMetadata(r))
+			return params;
+		DjatokaDecodeParam c = DecodeParamNormalizer.normalize(r, params);
+		if (c == null)
+			return params;
+		// Small previews are decoded from the leading quality layers only
+		if (previewLayers > 0 && (c.getQualityLayers() == 0 || c.getQualityLayers() > previewLayers)) {
+			Dimension d = DecodeParamNormalizer.getOutputSize(r, c);
+			if (d != null && (long) d.width * d.height <= previewMaxPixels)
+				c.setQualityLayers(DecodeParamNormalizer.getQualityLayers(r, previewLayers));
+		}
+		return c;
+	}
+	
+	/**
+	 * Populates the dimensions and levels of the ImageRecord, which resolvers
+	 * may not provide, from the shared image metadata cache. Records already
+	 * filled and validated against the file by ReferentManager are used as is.
+	 * @return true if the ImageRecord has image dimensions
+	 */
+	private static boolean loadMetadata(ImageRecord r) {
+		if (r.getImageFile() == null || r.getFileModified() > 0)
+			return r.getWidth() > 0 && r.getHeight() > 0;
+		try {
+			ImageRecord m = metadata.getMetadata(r);
+			if (m != r) {
+				ImageRecordCache.copy(m, r);
+				r.setFileIdentity(m.getFileLength(), m.getFileModified());
+			}
+		} catch (DjatokaException e) {
+			logger.debug("Unable to obtain metadata for " + r.getImageFile() + ": " + e.getMessage());
+			return false;
+		}
+		return r.getWidth() > 0 && r.getHeight() > 0;
+	}
+	
+	private static boolean isCacheable(DjatokaDecodeParam params) {
 		if (transformCheck && params.getTransform().isTransformable())
 			return false;
 		if (params.getRegion() != null) {
 			String[] r = params.getRegion().split(",");
 			if (r.length == 4) {
-				int h = Integer.parseInt(r[2]);
-				int w = Integer.parseInt(r[3]);
+				// Canonical regions are in pixels; fractional extents are left uncached
+				if (r[2].contains(".") || r[3].contains("."))
+					return false;
+				long h = Long.parseLong(r[2].trim());
+				long w = Long.parseLong(r[3].trim());
 				if ((h * w) >= maxPixels)
 					return false;
 			}	
@@ -326,7 +886,17 @@ public class OpenURLJP2KService implements Service, FormatConstants {
 		return true;
 	}
 	
-	private static final String getTileHash(ImageRecord r, DjatokaDecodeParam params) throws Exception {
+	/**
+	 * Returns the tile hash of the decode parameters
+	 * @param canonical true if the parameters were returned by DecodeParamNormalizer
+	 */
+	private static final String getTileHash(ImageRecord r, DjatokaDecodeParam params, 
+			boolean canonical) throws Exception {
+		// Keyed by the pixels produced, so equivalent requests share a tile
+		if (canonical) {
+			MessageDigest complete = MessageDigest.getInstance("SHA1");
+			return CacheDirectory.toHex(complete.digest(DecodeParamNormalizer.getKey(r, params).getBytes("UTF-8")));
+		}
 		String id = r.getIdentifier();
 		int level = params.getLevel();
 		String region = params.getRegion(); 
@@ -340,8 +910,10 @@ public class OpenURLJP2KService implements Service, FormatConstants {
         	scale = scalingDims[0] + "," + scalingDims[1];
 		int clayer = params.getCompositingLayer();
 		String rft_id = id + "|" + level + "|" + region + "|" + rotateDegree + "|" + scalingFactor + "|" + scale + "|" + clayer; 
+		if (params.getQualityLayers() > 0)
+			rft_id += "|q" + params.getQualityLayers();
 	    MessageDigest complete = MessageDigest.getInstance("SHA1");
-		return new String(complete.digest(rft_id.getBytes()));
+		return CacheDirectory.toHex(complete.digest(rft_id.getBytes("UTF-8")));
     }
 	
 	private static final String getExtension(String mimetype) {
@@ -403,6 +975,11 @@ public class OpenURLJP2KService implements Service, FormatConstants {
 										"svc.clayer"))[0] != "")
 							map.put("clayer", ((String[]) kev.getFieldMap()
 									.get("svc.clayer"))[0]);
+						if (kev.getFieldMap().containsKey("svc.layers")
+								&& ((String[]) kev.getFieldMap().get(
+										"svc.layers"))[0] != "")
+							map.put("layers", ((String[]) kev.getFieldMap()
+									.get("svc.layers"))[0]);
 					}
 				}
 			}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.openurl;
+
+import gov.lanl.util.HttpDate;
+import info.openurl.oom.ContextObject;
+import info.openurl.oom.OpenURLRequest;
+import info.openurl.oom.OpenURLRequestProcessor;
+import info.openurl.oom.OpenURLResponse;
+import info.openurl.oom.Service;
+import info.openurl.oom.config.ClassConfig;
+import info.openurl.oom.config.OpenURLConfig;
+import info.openurl.oom.entities.ServiceType;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The OpenURLJP2Status OpenURL Service. Reports decode scheduler queue depth
+ * and wait times, and tile cache statistics, as a JSON object.
+ * 
+ * @author agent
+ */
+public class OpenURLJP2Status implements Service {
+	private static final String SVC_ID = "info:lanl-repo/svc/getStatus";
+	private static final String RESPONSE_TYPE = "application/json";
+
+	/**
+	 * Construct an info:lanl-repo/svc/getStatus web service class.
+	 * 
+	 * @param openURLConfig OOM Properties forwarded from OpenURLServlet
+	 * @param classConfig Implementation Properties forwarded from OpenURLServlet
+	 */
+	public OpenURLJP2Status(OpenURLConfig openURLConfig, ClassConfig classConfig) {
+	}
+
+	/**
+	 * Returns the OpenURL service identifier for this implementation of
+	 * info.openurl.oom.Service
+	 */
+	public URI getServiceID() throws URISyntaxException {
+		return new URI(SVC_ID);
+	}
+
+	/**
+	 * Returns the OpenURLResponse of a JSON object describing the state of 
+	 * the getRegion service.
+	 */
+	public OpenURLResponse resolve(ServiceType serviceType,
+			ContextObject contextObject, OpenURLRequest openURLRequest,
+			OpenURLRequestProcessor processor) {
+		byte[] bytes = OpenURLJP2KService.getStatus().getBytes();
+		HashMap<String, String> header_map = new HashMap<String, String>();
+		header_map.put("Content-Length", bytes.length + "");
+		header_map.put("Date", HttpDate.getHttpDate());
+		header_map.put("Cache-Control", "no-cache");
+		return new OpenURLResponse(HttpServletResponse.SC_OK, RESPONSE_TYPE, bytes, header_map);
+	}
+}
@@ -103,10 +103,17 @@ public class OpenURLJP2XML implements Service, FormatConstants {
 		String responseFormat = "application/xml";;
 		int status = HttpServletResponse.SC_OK;
 		ByteArrayOutputStream baos =  new ByteArrayOutputStream();
+		String etag = null;
+		long lastModified = 0;
 	    try {
 			baos = new ByteArrayOutputStream();
 			IExtract jp2 = new KduExtractExe();
 			ImageRecord r = ReferentManager.getImageRecord(contextObject.getReferent());
+			// The image file identity was validated when the record was resolved
+			etag = CacheHeaders.getETag(SVC_ID, r);
+			lastModified = CacheHeaders.getLastModified(r);
+			if (CacheHeaders.isNotModified(etag, lastModified))
+				return CacheHeaders.getNotModifiedResponse(etag, lastModified);
 			String[] xml = jp2.getXMLBox(r);
 			StringBuffer sb = new StringBuffer("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
             sb.append("<jp2:JP2XML xmlns:jp2=\"http://library.lanl.gov/2008-11/aDORe/JP2XML/\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"  xsi:schemaLocation=\"http://library.lanl.gov/2008-11/aDORe/JP2XML/ http://purl.lanl.gov/aDORe/schemas/2008-11/JP2XML.xsd\"");            
@@ -131,6 +138,8 @@ public class OpenURLJP2XML implements Service, FormatConstants {
 		HashMap<String, String> header_map = new HashMap<String, String>();
 		header_map.put("Content-Length", baos.size() + "");
 		header_map.put("Date", HttpDate.getHttpDate());
+		if (status == HttpServletResponse.SC_OK)
+			CacheHeaders.addHeaders(header_map, etag, lastModified);
 		return new OpenURLResponse(status, responseFormat, baos.toByteArray(), header_map);
 	}
 }
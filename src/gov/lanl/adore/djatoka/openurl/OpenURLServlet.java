@@ -15,8 +15,13 @@ import info.openurl.oom.OpenURLRequestProcessor;
 import info.openurl.oom.OpenURLResponse;
 import info.openurl.oom.Transport;
 import info.openurl.oom.config.OpenURLConfig;
+import gov.lanl.adore.djatoka.DjatokaCancelledException;
+import gov.lanl.adore.djatoka.DjatokaOverloadException;
 import gov.lanl.util.AccessManager;
+import gov.lanl.util.FileResponseInputStream;
+import gov.lanl.util.StreamingInputStream;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.SocketException;
@@ -47,6 +52,14 @@ public class OpenURLServlet extends HttpServlet {
      * Initial version
      */
     private static final long serialVersionUID = 1L;
+    // Request attributes of the Tomcat NIO/APR connector sendfile support
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    // Files smaller than this are written directly, as in Tomcat's DefaultServlet
+    private static final long SENDFILE_MIN_SIZE = 48 * 1024;
+    private static final int BUFFER_SIZE = 8192;
     private OpenURLConfig openURLConfig;
     private OpenURLRequestProcessor processor;
     private Transport[] transports;
@@ -76,6 +89,15 @@ public class OpenURLServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Stops the worker processes, background threads and native decoder 
+     * resources of the djatoka services when the application is stopped.
+     */
+    public void destroy() {
+        OpenURLJP2KService.shutdown();
+        super.destroy();
+    }
+
     /**
 	 * Extends HttpServlet Request to build OpenURL Request and Context Objects.
 	 * The req.getHeader("referer") is used to add an OpenURL ReferringEntities
@@ -83,6 +105,7 @@ public class OpenURLServlet extends HttpServlet {
 	 */
     protected void doGet(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException {
+        RequestContext.set(req);
         try {
             // Try each Transport until someone takes responsibility
             OpenURLRequest openURLRequest = null;
@@ -169,12 +192,23 @@ public class OpenURLServlet extends HttpServlet {
             case HttpServletResponse.SC_NOT_FOUND:
                 resp.sendError(status);
                 break;
+            case HttpServletResponse.SC_NOT_MODIFIED:
+                resp.setStatus(status);
+                break;
             default:
-                OutputStream out = resp.getOutputStream();
                 resp.setStatus(status);
                 resp.setContentType(result.getContentType());
                 InputStream is = result.getInputStream();
-                byte[] bytes = new byte[1024];
+                if (is instanceof FileResponseInputStream) {
+                    sendFile(req, resp, (FileResponseInputStream) is);
+                    break;
+                }
+                if (is instanceof StreamingInputStream) {
+                    sendStream(resp, (StreamingInputStream) is);
+                    break;
+                }
+                OutputStream out = resp.getOutputStream();
+                byte[] bytes = new byte[BUFFER_SIZE];
                 int len;
                 while ((len = is.read(bytes)) != -1) {
                     out.write(bytes, 0, len);
@@ -188,7 +222,73 @@ public class OpenURLServlet extends HttpServlet {
         	logger.debug(e);
         	//throw new ServletException(e.getMessage(), e);
             resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        } finally {
+            RequestContext.clear();
+        }
+    }
+    
+    /**
+     * Sends a file backed result. Where the connector supports sendfile the
+     * container sends the file once the request completes, without copying
+     * it through the java heap; otherwise the file channel is transferred to
+     * the response stream, which copies it through a heap buffer. Evictable
+     * files (i.e. cached tiles) are always sent from the open channel, as the
+     * container reopens the file by path after it may have been deleted.
+     */
+    private static void sendFile(HttpServletRequest req, HttpServletResponse resp, 
+            FileResponseInputStream is) throws IOException {
+        try {
+            long len = is.getLength();
+            if (len >= SENDFILE_MIN_SIZE && !is.isEvictable()
+                    && Boolean.TRUE.equals(req.getAttribute(SENDFILE_SUPPORT))) {
+                req.setAttribute(SENDFILE_FILENAME, is.getFile().getAbsolutePath());
+                req.setAttribute(SENDFILE_START, Long.valueOf(0));
+                req.setAttribute(SENDFILE_END, Long.valueOf(len));
+                return;
+            }
+            OutputStream out = resp.getOutputStream();
+            is.transferTo(out);
+            out.close();
+        } finally {
+            is.close();
+        }
+    }
+    
+    /**
+     * Writes a result produced on demand directly to the response. Without a 
+     * Content-Length the container uses chunked transfer encoding. A failure 
+     * before the response is committed is reported as an error status.
+     */
+    private static void sendStream(HttpServletResponse resp, StreamingInputStream is) 
+            throws IOException {
+        OutputStream out = resp.getOutputStream();
+        try {
+            is.writeTo(out);
+        } catch (IOException e) {
+            if (resp.isCommitted())
+                throw e;
+            resp.reset();
+            // Decode rejected by the scheduler; the client may retry later
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (t instanceof DjatokaOverloadException) {
+                    logger.warn(t.getMessage());
+                    resp.setHeader("Retry-After", ((DjatokaOverloadException) t).getRetryAfter() + "");
+                    resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, t.getMessage());
+                    return;
+                }
+            }
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (t instanceof DjatokaCancelledException) {
+                    logger.debug(t.getMessage());
+                    resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, t.getMessage());
+                    return;
+                }
+            }
+            logger.error(e, e);
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            return;
         }
+        out.close();
     }
     
     protected void doPost(HttpServletRequest req, HttpServletResponse resp)
@@ -24,6 +24,7 @@
 package gov.lanl.adore.djatoka.openurl;
 
 import gov.lanl.adore.djatoka.util.ImageRecord;
+import gov.lanl.adore.djatoka.util.ImageRecordCache;
 import info.openurl.oom.entities.Referent;
 
 import java.util.Properties;
@@ -61,24 +62,30 @@ public class ReferentManager {
      * Gets ImageRecord for the initialized IReferentResolver impl..  This method may
      * be used when metadata is provided about the resource and the underlying resource
      * resolver needs to resolve the metadata to an identifier and resource location.
+     * Image metadata is populated if held in the image metadata cache.
      * @param rft OpenURL OOM Referent object for the requested ImageRecord 
      * @return an ImageRecord containing a file path to resource or resource 
      * defined in object, typically byte[] or InputStream
      * @throws ResolverException
      */
     public static ImageRecord getImageRecord(Referent rft) throws ResolverException {
-    	return rftResolver.getImageRecord(rft);
+    	ImageRecord r = rftResolver.getImageRecord(rft);
+    	ImageRecordCache.fill(r);
+    	return r;
     }
 	
     /**
-     * Gets ImageRecord for the initialized IReferentResolver impl.
+     * Gets ImageRecord for the initialized IReferentResolver impl. Image metadata
+     * is populated if held in the image metadata cache.
      * @param rft identifier/url for the requested ImageRecord 
      * @return an ImageRecord containing a file path to resource or resource 
      * defined in object, typically byte[] or InputStream
      * @throws ResolverException
      */
     public static ImageRecord getImageRecord(String rft) throws ResolverException {
-    	return rftResolver.getImageRecord(rft);
+    	ImageRecord r = rftResolver.getImageRecord(rft);
+    	ImageRecordCache.fill(r);
+    	return r;
     }
     
     /**
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.openurl;
+
+import gov.lanl.adore.djatoka.CancellationToken;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Makes the HTTP request being processed available to OpenURL services, 
+ * which otherwise only receive the OpenURL context object. Set by the
+ * OpenURLServlet for the duration of each request; services must allow
+ * for the absence of a request (e.g. when invoked outside of the servlet).
+ * <p>
+ * Each request also carries a CancellationToken, which services attach to
+ * their decodes; it is cancelled when its deadline passes, or by container
+ * specific code able to detect that the client has disconnected.
+ * @author agent
+ *
+ */
+public class RequestContext {
+	private static final ThreadLocal<HttpServletRequest> current = new ThreadLocal<HttpServletRequest>();
+	private static final ThreadLocal<CancellationToken> cancellation = new ThreadLocal<CancellationToken>();
+
+	/**
+	 * Associates the HTTP request, and a new cancellation token, with the 
+	 * current thread
+	 * @param req the HTTP request being processed
+	 */
+	public static void set(HttpServletRequest req) {
+		current.set(req);
+		cancellation.set(new CancellationToken());
+	}
+
+	/**
+	 * Removes the HTTP request associated with the current thread and 
+	 * releases its cancellation token
+	 */
+	public static void clear() {
+		current.remove();
+		CancellationToken token = cancellation.get();
+		if (token != null)
+			token.dispose();
+		cancellation.remove();
+	}
+
+	/**
+	 * Returns the cancellation token of the HTTP request being processed
+	 * @return the cancellation token, or null if no request is being processed
+	 */
+	public static CancellationToken getCancellation() {
+		return cancellation.get();
+	}
+
+	/**
+	 * Returns the HTTP request being processed by the current thread
+	 * @return the HTTP request, or null if none is being processed
+	 */
+	public static HttpServletRequest get() {
+		return current.get();
+	}
+
+	/**
+	 * Returns the value of a header of the HTTP request being processed
+	 * @param name header name
+	 * @return the header value, or null if absent or no request is being processed
+	 */
+	public static String getHeader(String name) {
+		HttpServletRequest req = current.get();
+		return (req == null) ? null : req.getHeader(name);
+	}
+}
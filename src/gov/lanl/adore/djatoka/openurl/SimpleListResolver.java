@@ -41,6 +41,8 @@ import org.apache.log4j.Logger;
 import gov.lanl.adore.djatoka.util.ImageRecord;
 import gov.lanl.util.ConcurrentEvictionFileDelete;
 import gov.lanl.util.ConcurrentLinkedHashMap;
+import gov.lanl.util.DiskSpaceGuard;
+import gov.lanl.util.FileSizeWeigher;
 import info.openurl.oom.entities.Referent;
 
 /**
@@ -58,12 +60,16 @@ public class SimpleListResolver implements IReferentResolver {
 	static Logger logger = Logger.getLogger(SimpleListResolver.class);
 	private static final String PROP_IMGS_INDEX = "SimpleListResolver.imgIndexFile";
 	private static final String PROP_REMOTE_CACHE = "SimpleListResolver.maxRemoteCacheSize";
+	private static final String PROP_REMOTE_CACHE_BYTES = "SimpleListResolver.maxRemoteCacheBytes";
+	private static final String PROP_REMOTE_CACHE_LOW_BYTES = "SimpleListResolver.remoteCacheLowWaterBytes";
+	private static final String PROP_REMOTE_CACHE_MIN_FREE = "SimpleListResolver.remoteCacheMinFreeBytes";
 	private static final int DEFAULT_REMOTE_CACHE_SIZE = 100;
 	private static int maxRemoteCacheSize = DEFAULT_REMOTE_CACHE_SIZE;
 	private static Map<String, ImageRecord> imgs;
 	private static IReferentMigrator dim = new DjatokaImageMigrator();
 	// Keep track of downloaded images, delete when maxCache is hit
 	private static ConcurrentLinkedHashMap<String,String> remoteCacheMap;
+	private static DiskSpaceGuard remoteGuard;
 	
 	/**
 	 * Referent Identifier to be resolved from Identifier Resolver. The returned
@@ -99,6 +105,8 @@ public class SimpleListResolver implements IReferentResolver {
 					if (imgs.containsKey(rftId))
 					    return imgs.get(rftId);
 				}
+				if (remoteGuard != null && !remoteGuard.ensure(0))
+					throw new ResolverException("Insufficient disk space to cache " + rftId);
 				File f = dim.convert(uri);
 				ir = new ImageRecord(rftId, f.getAbsolutePath());
 				// LRU cache will delete oldest file when max is reached, 
@@ -166,7 +174,16 @@ public class SimpleListResolver implements IReferentResolver {
 			String mrcs = props.getProperty(PROP_REMOTE_CACHE);
 			if (mrcs != null)
 			    maxRemoteCacheSize = Integer.parseInt(mrcs);
-			remoteCacheMap = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, maxRemoteCacheSize, new ConcurrentEvictionFileDelete());
+			// Remote images are weighed by file size; 0 bytes limits by image count alone
+			long maxBytes = Long.parseLong(props.getProperty(PROP_REMOTE_CACHE_BYTES, "0"));
+			if (maxBytes <= 0)
+				maxBytes = Long.MAX_VALUE;
+			remoteCacheMap = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, maxRemoteCacheSize, new ConcurrentEvictionFileDelete<String, String>(), new FileSizeWeigher(), maxBytes);
+			if (maxBytes != Long.MAX_VALUE)
+				remoteCacheMap.setWeightedCapacity(maxBytes, Long.parseLong(props.getProperty(PROP_REMOTE_CACHE_LOW_BYTES, String.valueOf(maxBytes / 10 * 9))));
+			long minFree = Long.parseLong(props.getProperty(PROP_REMOTE_CACHE_MIN_FREE, "0"));
+			if (minFree > 0)
+				remoteGuard = new DiskSpaceGuard(new File(System.getProperty("java.io.tmpdir")), minFree, remoteCacheMap);
 		} catch (Exception e) {
 			logger.error(e,e);
 			throw new ResolverException(e);
@@ -0,0 +1,398 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.openurl;
+
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+import gov.lanl.adore.djatoka.kdu.KduExtractExe;
+import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
+import gov.lanl.adore.djatoka.util.ImageRecord;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pre-generates the tiles a viewer requests for a list of images, so that
+ * new collections do not launch with a cold tile cache. For each image, 
+ * every resolution level from 0 up to TileCacheWarmer.maxLevel is cut into 
+ * tileSize x tileSize regions and cached using the same keys as the 
+ * getRegion service. Images are taken from TileCacheWarmer.identifierFile 
+ * (one rft_id per line) and/or the most requested rft_ids in 
+ * TileCacheWarmer.accessLog.
+ * <p>
+ * Tiles are generated on a small pool of threads, each of which starts a 
+ * decode only while no interactive request is waiting for a decode slot 
+ * and fewer than TileCacheWarmer.maxActiveDecodes decodes are in progress;
+ * thread priority alone does not carry over to kdu_expand processes. The 
+ * dutyCycle property further caps the share of time each thread spends 
+ * decoding (e.g. 0.5 sleeps as long as each tile took to generate).
+ * 
+ * @author agent
+ *
+ */
+public class TileCacheWarmer {
+	static Logger logger = Logger.getLogger(TileCacheWarmer.class);
+	private static final String PROPS_KEY_IDS = "TileCacheWarmer.identifierFile";
+	private static final String PROPS_KEY_ACCESS_LOG = "TileCacheWarmer.accessLog";
+	private static final String PROPS_KEY_TOP_N = "TileCacheWarmer.topN";
+	private static final String PROPS_KEY_MAX_LEVEL = "TileCacheWarmer.maxLevel";
+	private static final String PROPS_KEY_TILE_SIZE = "TileCacheWarmer.tileSize";
+	private static final String PROPS_KEY_FORMAT = "TileCacheWarmer.format";
+	private static final String PROPS_KEY_THREADS = "TileCacheWarmer.threads";
+	private static final String PROPS_KEY_DUTY_CYCLE = "TileCacheWarmer.dutyCycle";
+	private static final String PROPS_KEY_REPORT = "TileCacheWarmer.reportInterval";
+	private static final String PROPS_KEY_MAX_ACTIVE = "TileCacheWarmer.maxActiveDecodes";
+	private static final String DEFAULT_TOP_N = "100";
+	private static final String DEFAULT_MAX_LEVEL = "4";
+	private static final String DEFAULT_TILE_SIZE = "256";
+	private static final String DEFAULT_FORMAT = "image/jpeg";
+	private static final String DEFAULT_THREADS = "1";
+	private static final String DEFAULT_DUTY_CYCLE = "0.5";
+	private static final String DEFAULT_REPORT = "60000";
+	private static final String RFT_ID = "rft_id=";
+	// Milliseconds between checks for an idle decoder
+	private static final long IDLE_POLL = 100;
+
+	private final int maxLevel;
+	private final int tileSize;
+	private final String format;
+	private final int threads;
+	private final double dutyCycle;
+	private final long reportInterval;
+	private final int maxActive;
+	private final Semaphore slots;
+	private final ThreadPoolExecutor executor;
+	private final AtomicInteger images = new AtomicInteger();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong cached = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private volatile long started;
+	private volatile boolean stopped = false;
+
+	/**
+	 * Creates a warmer configured by the TileCacheWarmer.* properties
+	 * @param props djatoka properties
+	 */
+	public TileCacheWarmer(Properties props) {
+		maxLevel = Integer.parseInt(props.getProperty(PROPS_KEY_MAX_LEVEL, DEFAULT_MAX_LEVEL));
+		tileSize = Integer.parseInt(props.getProperty(PROPS_KEY_TILE_SIZE, DEFAULT_TILE_SIZE));
+		format = props.getProperty(PROPS_KEY_FORMAT, DEFAULT_FORMAT);
+		threads = Math.max(1, Integer.parseInt(props.getProperty(PROPS_KEY_THREADS, DEFAULT_THREADS)));
+		double d = Double.parseDouble(props.getProperty(PROPS_KEY_DUTY_CYCLE, DEFAULT_DUTY_CYCLE));
+		dutyCycle = (d > 0 && d <= 1) ? d : 1;
+		reportInterval = Long.parseLong(props.getProperty(PROPS_KEY_REPORT, DEFAULT_REPORT));
+		maxActive = Math.max(1, Integer.parseInt(props.getProperty(PROPS_KEY_MAX_ACTIVE, String.valueOf(threads))));
+		// Caps warming decodes at threads, including tiles run by the feeding thread
+		slots = new Semaphore(threads);
+		// Bounded queue; when full the feeding thread generates the tile itself
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, 
+				new LinkedBlockingQueue<Runnable>(threads * 4), new ThreadFactory() {
+					private final AtomicInteger n = new AtomicInteger();
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "djatoka-warmer-" + n.incrementAndGet());
+						t.setDaemon(true);
+						t.setPriority(Thread.MIN_PRIORITY);
+						return t;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Returns true if the properties define images to be warmed
+	 * @param props djatoka properties
+	 * @return true if an identifier file or access log is configured
+	 */
+	public static boolean isConfigured(Properties props) {
+		return props.getProperty(PROPS_KEY_IDS) != null || props.getProperty(PROPS_KEY_ACCESS_LOG) != null;
+	}
+
+	/**
+	 * Collects the identifiers defined by the properties and warms them on a 
+	 * background thread.
+	 * @param props djatoka properties
+	 * @return the started thread
+	 */
+	public Thread start(final Properties props) {
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					ArrayList<String> ids = new ArrayList<String>();
+					if (props.getProperty(PROPS_KEY_IDS) != null)
+						ids.addAll(readIdentifiers(props.getProperty(PROPS_KEY_IDS)));
+					if (props.getProperty(PROPS_KEY_ACCESS_LOG) != null) {
+						int n = Integer.parseInt(props.getProperty(PROPS_KEY_TOP_N, DEFAULT_TOP_N));
+						for (String id : readAccessLog(props.getProperty(PROPS_KEY_ACCESS_LOG), n))
+							if (!ids.contains(id))
+								ids.add(id);
+					}
+					warm(ids);
+				} catch (Throwable e) {
+					logger.error("Tile cache warming failed: " + e.getMessage(), e);
+				}
+			}
+		}, "djatoka-warmer");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+		return t;
+	}
+
+	/**
+	 * Generates the tiles of each image, blocking until all have been 
+	 * generated or stop() is called.
+	 * @param ids image identifiers to be warmed
+	 */
+	public void warm(List<String> ids) {
+		started = System.currentTimeMillis();
+		long lastReport = started;
+		logger.info("Warming tile cache for " + ids.size() + " images, levels 0-" + maxLevel + ", " + tileSize + "px " + format);
+		for (String id : ids) {
+			if (stopped)
+				break;
+			try {
+				warm(id);
+			} catch (Exception e) {
+				logger.warn("Unable to warm " + id + ": " + e.getMessage());
+			}
+			images.incrementAndGet();
+			if (System.currentTimeMillis() - lastReport >= reportInterval) {
+				lastReport = System.currentTimeMillis();
+				logger.info("Warming " + images.get() + "/" + ids.size() + " images: " + this);
+			}
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		logger.info("Warmed " + images.get() + " images: " + this);
+	}
+
+	private void warm(String id) throws Exception {
+		final ImageRecord r = ReferentManager.getImageRecord(id);
+		if (r == null)
+			throw new ResolverException("Unable to resolve " + id);
+		if (r.getWidth() == 0 || r.getHeight() == 0)
+			new KduExtractExe().getMetadata(r);
+		int levels = ImageProcessingUtils.getLevelCount(r.getWidth(), r.getHeight());
+		levels = (r.getDWTLevels() < levels) ? r.getDWTLevels() : levels;
+		for (int level = 0; level <= Math.min(maxLevel, levels) && !stopped; level++) {
+			int scale = 1 << (levels - level);
+			int w = (r.getWidth() + scale - 1) / scale;
+			int h = (r.getHeight() + scale - 1) / scale;
+			for (int y = 0; y < h && !stopped; y += tileSize) {
+				for (int x = 0; x < w && !stopped; x += tileSize) {
+					// Region insets are in full resolution pixels, extents at the level
+					final DjatokaDecodeParam p = new DjatokaDecodeParam();
+					p.setLevel(level);
+					p.setRegion((y * scale) + "," + (x * scale) + "," + tileSize + "," + tileSize);
+					executor.execute(new Runnable() {
+						public void run() {
+							warmTile(r, p);
+						}
+					});
+				}
+			}
+		}
+	}
+
+	private void warmTile(ImageRecord r, DjatokaDecodeParam p) {
+		long start = System.currentTimeMillis();
+		try {
+			slots.acquire();
+			try {
+				if (OpenURLJP2KService.warmTile(r, p, format, this))
+					created.incrementAndGet();
+				else if (!stopped)
+					cached.incrementAndGet();
+			} finally {
+				slots.release();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (Exception e) {
+			failed.incrementAndGet();
+			logger.debug("Unable to warm " + r.getIdentifier() + " " + p.getRegion() + ": " + e.getMessage());
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		if (dutyCycle < 1 && elapsed > 0) {
+			try {
+				Thread.sleep((long) (elapsed * (1 - dutyCycle) / dutyCycle));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Waits until a warming decode may start without competing with 
+	 * interactive requests: none are waiting for a decode slot and fewer 
+	 * than maxActiveDecodes decodes are in progress.
+	 * @return false if warming was stopped while waiting
+	 * @throws InterruptedException
+	 */
+	boolean awaitAdmission() throws InterruptedException {
+		while (!stopped) {
+			if (OpenURLJP2KService.isDecoderIdle(maxActive))
+				return true;
+			Thread.sleep(IDLE_POLL);
+		}
+		return false;
+	}
+
+	/**
+	 * Stops warming after the tiles in progress complete
+	 */
+	public void stop() {
+		stopped = true;
+		executor.getQueue().clear();
+		executor.shutdown();
+	}
+
+	/**
+	 * Reads rft_ids, one per line, from a file path or classpath resource.
+	 * Blank lines and lines starting with # are ignored; only the first tab
+	 * delimited column is used, so an imgIndex file may be provided.
+	 * @param file path or classpath resource of the identifier list
+	 * @return list of identifiers
+	 * @throws IOException
+	 */
+	public static List<String> readIdentifiers(String file) throws IOException {
+		ArrayList<String> ids = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(locate(file)));
+		try {
+			String row;
+			while ((row = reader.readLine()) != null) {
+				row = row.trim();
+				if (row.length() == 0 || row.startsWith("#"))
+					continue;
+				ids.add(row.split("\t")[0]);
+			}
+		} finally {
+			reader.close();
+		}
+		return ids;
+	}
+
+	/**
+	 * Returns the most frequently requested rft_ids found in an access log, 
+	 * most requested first.
+	 * @param file path of the access log
+	 * @param topN maximum number of identifiers to return
+	 * @return list of identifiers
+	 * @throws IOException
+	 */
+	public static List<String> readAccessLog(String file, int topN) throws IOException {
+		final HashMap<String, Integer> counts = new HashMap<String, Integer>();
+		BufferedReader reader = new BufferedReader(new FileReader(locate(file)));
+		try {
+			String row;
+			while ((row = reader.readLine()) != null) {
+				int i = row.indexOf(RFT_ID);
+				if (i < 0)
+					continue;
+				int start = i + RFT_ID.length();
+				int end = start;
+				while (end < row.length() && "& \"".indexOf(row.charAt(end)) < 0)
+					end++;
+				try {
+					String id = URLDecoder.decode(row.substring(start, end), "UTF-8");
+					Integer c = counts.get(id);
+					counts.put(id, (c == null) ? 1 : c + 1);
+				} catch (IllegalArgumentException e) {
+					// ignore malformed request
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		ArrayList<Map.Entry<String, Integer>> l = new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+		Collections.sort(l, new Comparator<Map.Entry<String, Integer>>() {
+			public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+		ArrayList<String> ids = new ArrayList<String>();
+		for (int i = 0; i < l.size() && i < topN; i++)
+			ids.add(l.get(i).getKey());
+		return ids;
+	}
+
+	private static File locate(String file) throws IOException {
+		File f = new File(file);
+		if (f.exists())
+			return f;
+		URL url = Thread.currentThread().getContextClassLoader().getResource(file);
+		if (url == null)
+			throw new IOException("Unable to locate " + file);
+		return new File(url.getFile());
+	}
+
+	public long getTilesCreated() {
+		return created.get();
+	}
+
+	public long getTilesCached() {
+		return cached.get();
+	}
+
+	public long getTilesFailed() {
+		return failed.get();
+	}
+
+	public int getImagesWarmed() {
+		return images.get();
+	}
+
+	public String toString() {
+		long elapsed = Math.max(1, System.currentTimeMillis() - started);
+		StringBuffer sb = new StringBuffer();
+		sb.append("{");
+		sb.append("\"images\": \"" + images.get() + "\", ");
+		sb.append("\"created\": \"" + created.get() + "\", ");
+		sb.append("\"cached\": \"" + cached.get() + "\", ");
+		sb.append("\"failed\": \"" + failed.get() + "\", ");
+		sb.append("\"elapsed\": \"" + (elapsed / 1000) + "s\", ");
+		sb.append("\"tilesPerSecond\": \"" + (created.get() * 1000 / elapsed) + "\" ");
+		sb.append("}");
+		return sb.toString();
+	}
+}
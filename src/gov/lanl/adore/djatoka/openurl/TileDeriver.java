@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.openurl;
+
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+import gov.lanl.adore.djatoka.DjatokaException;
+import gov.lanl.adore.djatoka.DjatokaExtractProcessor;
+import gov.lanl.adore.djatoka.util.DecodeParamNormalizer;
+import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
+import gov.lanl.adore.djatoka.util.ImageRecord;
+import gov.lanl.adore.djatoka.util.PixelLayout;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Builds lower resolution tiles from cached tiles of a higher resolution 
+ * level, rather than decoding the JPEG 2000 image again. Zooming out over an
+ * area the client has just viewed then costs a few reads and a downsample 
+ * of cached tiles instead of a kdu_expand per tile.
+ * <p>
+ * Cached tiles holding unscaled, unrotated pixels are indexed by image, 
+ * level, compositing layer and format along with the pixel rectangle they 
+ * cover. A request may be derived if cached tiles at its own level (e.g. a
+ * scaled or stitched view of cached tiles) or up to two levels up cover its
+ * region. For each such request the cost of deriving (bytes of 
+ * cached tiles to read, at the observed cost per pixel) is compared with 
+ * the observed cost of a fresh decode, and the cheaper option is taken.
+ * <p>
+ * Only tiles decoded from the JPEG 2000 image are used as sources, never 
+ * derived tiles, and by default only PNG tiles. Deriving from JPEG tiles 
+ * (OpenURLJP2KService.deriveFromJpeg) decodes lossy tiles, downsamples and
+ * re-encodes them, so a derived JPEG tile, which is cached and validated 
+ * like a decoded one, carries a second generation of compression loss and
+ * differs from what a fresh decode would produce.
+ * @author agent
+ *
+ */
+public class TileDeriver {
+	static Logger logger = Logger.getLogger(TileDeriver.class);
+	private static final String PROPS_KEY_ENABLED = "OpenURLJP2KService.deriveTiles";
+	private static final String PROPS_KEY_MAX_SOURCES = "OpenURLJP2KService.deriveMaxSourceTiles";
+	private static final String PROPS_KEY_MAX_LEVELS = "OpenURLJP2KService.deriveMaxLevels";
+	private static final String PROPS_KEY_FROM_JPEG = "OpenURLJP2KService.deriveFromJpeg";
+	private static final String DEFAULT_MAX_SOURCES = "16";
+	private static final String DEFAULT_MAX_LEVELS = "2";
+	// Initial estimates, replaced by observed costs as requests are served
+	private static final long INITIAL_DECODE_NANOS = 100L * 1000 * 1000;
+	private static final long INITIAL_DERIVE_NANOS_PER_PIXEL = 25;
+	// Weight of the newest observation in the moving averages, as 1/n
+	private static final int SMOOTHING = 16;
+	private final ConcurrentHashMap<String, List<Entry>> groups = new ConcurrentHashMap<String, List<Entry>>();
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final Map<String, String> tileCache;
+	private final DjatokaExtractProcessor extractor;
+	private final int maxSources;
+	private final int maxLevels;
+	private final boolean fromJpeg;
+	private volatile long decodeNanos = INITIAL_DECODE_NANOS;
+	private volatile long deriveNanosPerPixel = INITIAL_DERIVE_NANOS_PER_PIXEL;
+	private final AtomicLong derived = new AtomicLong();
+	private final AtomicLong decoded = new AtomicLong();
+
+	/**
+	 * Creates a new tile deriver over the provided tile cache
+	 * @param props djatoka properties
+	 * @param tileCache map of tile cache key to tile file
+	 * @param extractor processor used to scale, transform and write derived tiles
+	 */
+	public TileDeriver(Properties props, Map<String, String> tileCache, DjatokaExtractProcessor extractor) {
+		this.tileCache = tileCache;
+		this.extractor = extractor;
+		this.maxSources = Integer.parseInt(props.getProperty(PROPS_KEY_MAX_SOURCES, DEFAULT_MAX_SOURCES));
+		this.maxLevels = Integer.parseInt(props.getProperty(PROPS_KEY_MAX_LEVELS, DEFAULT_MAX_LEVELS));
+		this.fromJpeg = Boolean.parseBoolean(props.getProperty(PROPS_KEY_FROM_JPEG, "false"));
+	}
+
+	/**
+	 * Returns true unless tile derivation is disabled in the provided properties
+	 * @param props djatoka properties
+	 * @return true unless tile derivation is disabled
+	 */
+	public static boolean isEnabled(Properties props) {
+		return Boolean.parseBoolean(props.getProperty(PROPS_KEY_ENABLED, "true"));
+	}
+
+	/**
+	 * Records a newly decoded and cached tile, making it available as a 
+	 * source if it holds unscaled, unrotated pixels. Derived tiles must not
+	 * be added, so that losses do not accumulate across derivations.
+	 * @param r ImageRecord populated with image metadata
+	 * @param params canonical decode parameters of the tile
+	 * @param ext file extension of the tile format
+	 * @param key tile cache key
+	 */
+	public void add(ImageRecord r, DjatokaDecodeParam params, String ext, String key) {
+		if (!isSourceFormat(ext) || !isPixels(params) || r.getWidth() <= 0)
+			return;
+		Rectangle rect = DecodeParamNormalizer.getLevelRect(r, params);
+		if (rect == null)
+			return;
+		String group = getGroup(r, params.getLevelReductionFactor(), params.getCompositingLayer(), ext);
+		Entry e = new Entry(key, group, rect);
+		if (entries.putIfAbsent(key, e) != null)
+			return;
+		List<Entry> l = groups.get(group);
+		if (l == null) {
+			List<Entry> n = new CopyOnWriteArrayList<Entry>();
+			l = groups.putIfAbsent(group, n);
+			if (l == null)
+				l = n;
+		}
+		l.add(e);
+	}
+
+	/**
+	 * Removes an evicted tile from the set of sources
+	 * @param key tile cache key
+	 */
+	public void remove(String key) {
+		Entry e = entries.remove(key);
+		if (e == null)
+			return;
+		List<Entry> l = groups.get(e.group);
+		if (l != null) {
+			l.remove(e);
+			if (l.isEmpty())
+				groups.remove(e.group, l);
+		}
+	}
+
+	/**
+	 * Derives the requested tile from cached higher resolution tiles, if they
+	 * cover the requested region and deriving is estimated to be cheaper than
+	 * decoding. Nothing is written to the OutputStream unless true is returned.
+	 * @param r ImageRecord populated with image metadata
+	 * @param params canonical decode parameters of the requested tile
+	 * @param format mimetype of the requested tile
+	 * @param ext file extension of the requested tile format
+	 * @param os OutputStream the tile is written to
+	 * @return true if the tile was derived and written, false if it must be decoded
+	 * @throws DjatokaException if writing the derived tile failed
+	 */
+	public boolean derive(ImageRecord r, DjatokaDecodeParam params, String format, 
+			String ext, OutputStream os) throws DjatokaException {
+		if (!isSourceFormat(ext) || params.getRotationDegree() != 0 
+				|| params.getTransform() != null || r.getWidth() <= 0)
+			return false;
+		Rectangle target = DecodeParamNormalizer.getLevelRect(r, params);
+		if (target == null)
+			return false;
+		int reduce = params.getLevelReductionFactor();
+		for (int d = 0; d <= maxLevels && reduce - d >= 0; d++) {
+			int source = reduce - d;
+			List<Entry> l = groups.get(getGroup(r, source, params.getCompositingLayer(), ext));
+			if (l == null)
+				continue;
+			// Region of the request at the source level, clipped to that level
+			int lw = DecodeParamNormalizer.getLevelSize(r.getWidth(), source);
+			int lh = DecodeParamNormalizer.getLevelSize(r.getHeight(), source);
+			Rectangle region = new Rectangle(target.x << d, target.y << d, 
+					target.width << d, target.height << d).intersection(new Rectangle(0, 0, lw, lh));
+			if (region.isEmpty())
+				continue;
+			ArrayList<Entry> sources = new ArrayList<Entry>();
+			Area covered = new Area();
+			long pixels = 0;
+			for (Entry e : l) {
+				if (!e.rect.intersects(region))
+					continue;
+				sources.add(e);
+				covered.add(new Area(e.rect));
+				pixels += (long) e.rect.width * e.rect.height;
+				if (sources.size() > maxSources)
+					break;
+			}
+			if (sources.size() > maxSources || !covered.contains(region))
+				continue;
+			if (pixels * deriveNanosPerPixel >= decodeNanos) {
+				logger.debug("decoding is cheaper than deriving from " + sources.size() + " tiles: " + params.getRegion());
+				return false;
+			}
+			long start = System.nanoTime();
+			BufferedImage bi = compose(sources, region);
+			if (bi == null)
+				continue;
+			if (bi.getWidth() != target.width || bi.getHeight() != target.height)
+				bi = ImageProcessingUtils.getScaledInstance(bi, target.width, target.height, false);
+			extractor.writeImage(bi, os, params, format);
+			deriveNanosPerPixel = average(deriveNanosPerPixel, (System.nanoTime() - start) / Math.max(1, pixels));
+			derived.incrementAndGet();
+			logger.debug("derived from " + sources.size() + " tiles at reduce " + source + ": " + r.getIdentifier() + " " + params.getRegion());
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records the duration of a fresh decode, updating the cost estimate 
+	 * derivation is compared against.
+	 * @param nanos duration of the decode in nanoseconds
+	 */
+	public void decoded(long nanos) {
+		decodeNanos = average(decodeNanos, nanos);
+		decoded.incrementAndGet();
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("{");
+		sb.append("\"sources\": \"" + entries.size() + "\", ");
+		sb.append("\"derived\": \"" + derived.get() + "\", ");
+		sb.append("\"decoded\": \"" + decoded.get() + "\", ");
+		sb.append("\"decodeNanos\": \"" + decodeNanos + "\", ");
+		sb.append("\"deriveNanosPerPixel\": \"" + deriveNanosPerPixel + "\" ");
+		sb.append("}");
+		return sb.toString();
+	}
+
+	/**
+	 * Copies the source tiles into a single image of the region, in the 
+	 * layout of the first tile, or returns null if a source tile is no 
+	 * longer cached or cannot be read. Tiles of another layout are drawn,
+	 * converting their pixels.
+	 */
+	private BufferedImage compose(List<Entry> sources, Rectangle region) {
+		BufferedImage bi = null;
+		for (Entry e : sources) {
+			String file = tileCache.get(e.key);
+			BufferedImage tile = null;
+			if (file != null) {
+				try {
+					tile = ImageIO.read(new File(file));
+				} catch (IOException ex) {
+					logger.debug("Unable to read source tile " + file + ": " + ex.getMessage());
+				}
+			}
+			if (tile == null) {
+				remove(e.key);
+				return null;
+			}
+			tile = PixelLayout.convert(tile, "compose");
+			if (bi == null)
+				bi = PixelLayout.createCompatible(tile, region.width, region.height);
+			int x = e.rect.x - region.x;
+			int y = e.rect.y - region.y;
+			if (tile.getType() == bi.getType() && tile.getType() != BufferedImage.TYPE_CUSTOM) {
+				bi.getRaster().setRect(x, y, tile.getRaster());
+			} else {
+				Graphics2D g = bi.createGraphics();
+				try {
+					g.drawImage(tile, x, y, null);
+				} finally {
+					g.dispose();
+				}
+				PixelLayout.count("compose");
+			}
+		}
+		return bi;
+	}
+
+	private static long average(long avg, long sample) {
+		return avg + (sample - avg) / SMOOTHING;
+	}
+
+	private boolean isSourceFormat(String ext) {
+		// Formats javax.imageio reads without plugins; JPEG only if lossy derivation is accepted
+		return "png".equals(ext) || (fromJpeg && "jpg".equals(ext));
+	}
+
+	private static boolean isPixels(DjatokaDecodeParam params) {
+		// Tiles decoded from fewer quality layers are not reused at full quality
+		return params.getRotationDegree() == 0 && params.getTransform() == null
+			&& params.getQualityLayers() == 0
+			&& params.getScalingDimensions() == null && params.getScalingFactor() == 1.0;
+	}
+
+	private static String getGroup(ImageRecord r, int reduce, int clayer, String ext) {
+		return r.getIdentifier() + "|" + r.getImageFile() + "|" + reduce + "|" + clayer + "|" + ext;
+	}
+
+	private static final class Entry {
+		final String key;
+		final String group;
+		final Rectangle rect;
+
+		Entry(String key, String group, Rectangle rect) {
+			this.key = key;
+			this.group = group;
+			this.rect = rect;
+		}
+	}
+}
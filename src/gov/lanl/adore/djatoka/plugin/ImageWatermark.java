@@ -23,6 +23,8 @@
 
 package gov.lanl.adore.djatoka.plugin;
 
+import gov.lanl.adore.djatoka.util.PixelLayout;
+
 import java.awt.AlphaComposite;
 import java.awt.Font;
 import java.awt.Graphics2D;
@@ -62,6 +64,7 @@ public class ImageWatermark extends TextWatermark {
 	public BufferedImage run(BufferedImage bi) throws TransformException {
 		if (!isTransformable())
 			return bi;
+		bi = PixelLayout.convert(bi, "transform");
 		Graphics2D graphics = bi.createGraphics();
 	    graphics.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, imageOpacity));
 	    graphics.drawImage(overlayImage, bi.getWidth() - overlayImage.getWidth(), bi.getHeight() - overlayImage.getHeight(), null);
@@ -93,6 +96,9 @@ public class ImageWatermark extends TextWatermark {
 		if (imagePath != null) {
 		    try {
 				overlayImage = ImageIO.read(new File(imagePath));
+				// Converted once, rather than by every draw, if indexed (e.g. a palette PNG)
+				if (overlayImage != null)
+					overlayImage = PixelLayout.convert(overlayImage, "setup");
 			}  catch (IOException e) {
 				e.printStackTrace();
 			}
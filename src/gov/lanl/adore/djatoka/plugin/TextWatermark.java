@@ -23,6 +23,8 @@
 
 package gov.lanl.adore.djatoka.plugin;
 
+import gov.lanl.adore.djatoka.util.PixelLayout;
+
 import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Font;
@@ -80,12 +82,15 @@ public class TextWatermark implements ITransformPlugIn {
 	public BufferedImage run(BufferedImage bi) throws TransformException {
 		if (!isTransformable())
 			return bi;
+		// Drawn in place; only layouts Graphics2D cannot draw into directly are converted
+		bi = PixelLayout.convert(bi, "transform");
 	    Graphics2D graphics = bi.createGraphics();
 	    graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 	    graphics.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, fontOpacity));
 	    graphics.setColor(color);
 	    graphics.setFont(new Font(fontName,Font.PLAIN,fontSize));
 	    graphics.drawString(msg, 10, bi.getHeight() - 10);
+	    graphics.dispose();
         return bi;
 	}
 	
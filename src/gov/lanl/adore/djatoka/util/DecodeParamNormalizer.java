@@ -0,0 +1,399 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.util;
+
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+import gov.lanl.adore.djatoka.DjatokaException;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.util.StringTokenizer;
+
+/**
+ * Resolves decode parameters against image metadata into a canonical form,
+ * so that equivalent requests (fractional vs. absolute regions, differences
+ * in number formatting, level vs. equivalent scale dimensions, scaling 
+ * factor vs. dimensions) are decoded identically and share one cache key.
+ * <p>
+ * The canonical form has an explicit level, a region in integer pixels 
+ * (insets in full resolution pixels, extents at the level, per the djatoka 
+ * region convention) clipped to the image, and scaling expressed as 
+ * explicit dimensions; scaling which would not change the output size is 
+ * dropped. Where scaling reduces the output, the level is lowered to the 
+ * coarsest level whose region still covers the output dimensions, so the
+ * codestream is decoded near the output resolution and only a residual 
+ * (at most 2:1) reduction is left to the scaling step. A quality layer 
+ * limit which is not below the number of layers in the codestream is 
+ * dropped. The cache key is derived from the pixel 
+ * rectangle at the decoded level, the exact output dimensions, rotation, 
+ * compositing layer and quality layer limit.
+ * <p>
+ * Lowering the level is planned by the caller which applies the scaling 
+ * (i.e. DjatokaExtractProcessor, OpenURLJP2KService), as it must then 
+ * scale from the canonical parameters. IExtract implementations resolve 
+ * the parameters they are given with resolve(), which keeps their level, 
+ * so requested parameters are not scaled twice.
+ * 
+ * @author agent
+ *
+ */
+public class DecodeParamNormalizer {
+
+	/**
+	 * Returns the canonical form of the provided decode parameters. The 
+	 * provided parameters are not modified.
+	 * @param r ImageRecord populated with image metadata (i.e. width, height, DWT levels)
+	 * @param p requested decode parameters
+	 * @return canonical decode parameters, or null if the request selects no pixels
+	 * @throws DjatokaException if the request is invalid for the image
+	 */
+	public static DjatokaDecodeParam normalize(ImageRecord r, DjatokaDecodeParam p) throws DjatokaException {
+		return normalize(r, p, true);
+	}
+
+	/**
+	 * Returns the canonical form of the provided decode parameters at the 
+	 * level they select, without lowering the level for scaling. Used by 
+	 * IExtract implementations to resolve the region to be decoded. The 
+	 * provided parameters are not modified.
+	 * @param r ImageRecord populated with image metadata (i.e. width, height, DWT levels)
+	 * @param p decode parameters, requested or canonical
+	 * @return resolved decode parameters, or null if the request selects no pixels
+	 * @throws DjatokaException if the request is invalid for the image
+	 */
+	public static DjatokaDecodeParam resolve(ImageRecord r, DjatokaDecodeParam p) throws DjatokaException {
+		return normalize(r, p, false);
+	}
+
+	private static DjatokaDecodeParam normalize(ImageRecord r, DjatokaDecodeParam p, boolean plan) 
+			throws DjatokaException {
+		int w = r.getWidth();
+		int h = r.getHeight();
+		if (w <= 0 || h <= 0)
+			throw new DjatokaException("Image dimensions are not available for " + r.getIdentifier());
+		int levels = getLevels(r);
+		int reduce = getReduce(r, p, levels);
+		int lw = getLevelSize(w, reduce);
+		int lh = getLevelSize(h, reduce);
+
+		DjatokaDecodeParam c = new DjatokaDecodeParam();
+		c.setLevel(levels - reduce);
+		c.setLevelReductionFactor(reduce);
+		c.setRotationDegree(p.getRotationDegree() % 360);
+		c.setCompositingLayer(p.getCompositingLayer());
+		c.setQualityLayers(getQualityLayers(r, p.getQualityLayers()));
+		c.setTransform(p.getTransform());
+		c.setCancellation(p.getCancellation());
+
+		Rectangle rect = new Rectangle(0, 0, lw, lh);
+		if (p.getRegion() != null) {
+			int[] rr = getLevelRegion(p.getRegion(), w, h, lw, lh);
+			if (rr == null)
+				return null;
+			rect = new Rectangle(rr[1], rr[0], rr[3], rr[2]);
+		}
+		boolean swap = c.getRotationDegree() == 90 || c.getRotationDegree() == 270;
+		int dw = swap ? rect.height : rect.width;
+		int dh = swap ? rect.width : rect.height;
+		int[] target = getScalingTarget(p, dw, dh);
+		if (target != null) {
+			int[] out = getScaledSize(dw, dh, target[0], target[1]);
+			// Decode the coarsest level still covering the output size, 
+			// leaving at most a 2:1 reduction to the scaling step
+			int d = 0;
+			while (plan && reduce + d < levels) {
+				Rectangle next = getReducedRect(rect, d + 1, lw, lh, 
+						getLevelSize(w, reduce + d + 1), getLevelSize(h, reduce + d + 1));
+				int nw = swap ? next.height : next.width;
+				int nh = swap ? next.width : next.height;
+				if (nw < out[0] || nh < out[1])
+					break;
+				d++;
+			}
+			if (d > 0) {
+				int rw = getLevelSize(w, reduce + d);
+				int rh = getLevelSize(h, reduce + d);
+				rect = getReducedRect(rect, d, lw, lh, rw, rh);
+				reduce += d;
+				c.setLevel(levels - reduce);
+				c.setLevelReductionFactor(reduce);
+				dw = swap ? rect.height : rect.width;
+				dh = swap ? rect.width : rect.height;
+				target = out;
+			}
+			out = getScaledSize(dw, dh, target[0], target[1]);
+			if (out[0] != dw || out[1] != dh)
+				c.setScalingDimensions(target);
+		}
+		c.setRegion(getRegion(r, reduce, rect));
+		return c;
+	}
+
+	/**
+	 * Returns the cache key of canonical decode parameters, identifying the
+	 * decoded pixels: identifier, level, pixel rectangle at the level, 
+	 * rotation, output dimensions, compositing layer and quality layer limit.
+	 * @param r ImageRecord populated with image metadata
+	 * @param c canonical decode parameters, as returned by normalize()
+	 * @return cache key of the request
+	 * @throws DjatokaException
+	 */
+	public static String getKey(ImageRecord r, DjatokaDecodeParam c) throws DjatokaException {
+		int reduce = c.getLevelReductionFactor();
+		int lw = getLevelSize(r.getWidth(), reduce);
+		int lh = getLevelSize(r.getHeight(), reduce);
+		int[] rect = new int[] {0, 0, lh, lw};
+		if (c.getRegion() != null)
+			rect = getLevelRegion(c.getRegion(), r.getWidth(), r.getHeight(), lw, lh);
+		int[] out = getOutputSize(rect[3], rect[2], c);
+		StringBuffer sb = new StringBuffer();
+		sb.append(r.getIdentifier()).append("|");
+		sb.append(reduce).append("|");
+		sb.append(rect[0]).append(",").append(rect[1]).append(",");
+		sb.append(rect[2]).append(",").append(rect[3]).append("|");
+		sb.append(c.getRotationDegree()).append("|");
+		sb.append(out[0]).append("x").append(out[1]).append("|");
+		sb.append(c.getCompositingLayer());
+		// Keys of full quality decodes are unchanged, so existing tiles stay valid
+		if (c.getQualityLayers() > 0)
+			sb.append("|q").append(c.getQualityLayers());
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the dimensions of the image produced by canonical decode 
+	 * parameters, after rotation and scaling.
+	 * @param r ImageRecord populated with image metadata
+	 * @param c canonical decode parameters, as returned by normalize()
+	 * @return output dimensions, or null if c is not canonical
+	 */
+	public static Dimension getOutputSize(ImageRecord r, DjatokaDecodeParam c) {
+		Rectangle rect = getLevelRect(r, c);
+		if (rect == null)
+			return null;
+		int[] out = getOutputSize(rect.width, rect.height, c);
+		return new Dimension(out[0], out[1]);
+	}
+
+	/**
+	 * Returns the quality layer limit to be decoded, or 0 if the limit does
+	 * not discard any of the layers in the codestream.
+	 * @param r ImageRecord populated with image metadata
+	 * @param layers requested number of quality layers, 0 for all layers
+	 * @return the number of quality layers to decode, or 0 for all layers
+	 */
+	public static int getQualityLayers(ImageRecord r, int layers) {
+		if (layers <= 0 || (r.getQualityLayers() > 0 && layers >= r.getQualityLayers()))
+			return 0;
+		return layers;
+	}
+
+	/**
+	 * Returns the pixel rectangle of canonical decode parameters at the 
+	 * decoded level, before rotation and scaling.
+	 * @param r ImageRecord populated with image metadata
+	 * @param c canonical decode parameters, as returned by normalize()
+	 * @return pixel rectangle at the level, or null if c is not canonical
+	 */
+	public static Rectangle getLevelRect(ImageRecord r, DjatokaDecodeParam c) {
+		int reduce = c.getLevelReductionFactor();
+		int lw = getLevelSize(r.getWidth(), reduce);
+		int lh = getLevelSize(r.getHeight(), reduce);
+		if (c.getRegion() == null)
+			return new Rectangle(0, 0, lw, lh);
+		try {
+			int[] rect = getLevelRegion(c.getRegion(), r.getWidth(), r.getHeight(), lw, lh);
+			return (rect != null) ? new Rectangle(rect[1], rect[0], rect[3], rect[2]) : null;
+		} catch (DjatokaException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the canonical region parameter of a pixel rectangle at the 
+	 * level; the inverse of getLevelRect().
+	 * @param r ImageRecord populated with image metadata
+	 * @param reduce number of levels discarded
+	 * @param rect pixel rectangle at the level, within the level
+	 * @return canonical Y,X,H,W region, or null if the rectangle covers the level
+	 */
+	public static String getRegion(ImageRecord r, int reduce, Rectangle rect) {
+		int w = r.getWidth();
+		int h = r.getHeight();
+		int lw = getLevelSize(w, reduce);
+		int lh = getLevelSize(h, reduce);
+		// Region covering the whole level is equivalent to no region
+		if (rect.x == 0 && rect.y == 0 && rect.width == lw && rect.height == lh)
+			return null;
+		long y = Math.round(rect.y * (double) h / lh);
+		long x = Math.round(rect.x * (double) w / lw);
+		return y + "," + x + "," + rect.height + "," + rect.width;
+	}
+
+	/**
+	 * Returns the number of resolution levels djatoka exposes for the image
+	 * @param r ImageRecord populated with image metadata
+	 * @return the highest level, which is decoded at full resolution
+	 */
+	public static int getLevels(ImageRecord r) {
+		int levels = ImageProcessingUtils.getLevelCount(r.getWidth(), r.getHeight());
+		return (r.getDWTLevels() < levels) ? r.getDWTLevels() : levels;
+	}
+
+	/**
+	 * Returns the size of a dimension of the image at the provided reduction
+	 * @param size full resolution size
+	 * @param reduce number of levels discarded
+	 * @return size at the reduced level
+	 */
+	public static int getLevelSize(int size, int reduce) {
+		return (int) Math.ceil(size / (double) (1 << reduce));
+	}
+
+	// Mirrors the level selection of the extraction implementations
+	private static int getReduce(ImageRecord r, DjatokaDecodeParam p, int levels) {
+		int reduce;
+		if (p.getLevel() >= 0)
+			reduce = levels - p.getLevel();
+		else if (p.getRegion() == null && p.getScalingDimensions() != null
+				&& p.getScalingDimensions().length == 2)
+			reduce = levels - ImageProcessingUtils.getScalingLevel(r.getWidth(), r.getHeight(), 
+					p.getScalingDimensions()[0], p.getScalingDimensions()[1]);
+		else
+			reduce = p.getLevelReductionFactor();
+		return Math.max(0, Math.min(reduce, levels));
+	}
+
+	/**
+	 * Returns the pixel rectangle at a level d levels coarser than the level
+	 * of the provided rectangle. Edges are rounded to the nearest pixel, so 
+	 * adjacent regions remain adjacent; edges on the image border stay there.
+	 */
+	private static Rectangle getReducedRect(Rectangle rect, int d, int lw, int lh, int rw, int rh) {
+		double s = 1 << d;
+		int x0 = Math.min((int) Math.round(rect.x / s), rw - 1);
+		int y0 = Math.min((int) Math.round(rect.y / s), rh - 1);
+		int x1 = (rect.x + rect.width >= lw) ? rw : (int) Math.round((rect.x + rect.width) / s);
+		int y1 = (rect.y + rect.height >= lh) ? rh : (int) Math.round((rect.y + rect.height) / s);
+		return new Rectangle(x0, y0, Math.max(1, Math.min(x1, rw) - x0), Math.max(1, Math.min(y1, rh) - y0));
+	}
+
+	/**
+	 * Resolves a Y,X,H,W region to a pixel rectangle at the level. Insets are 
+	 * full resolution pixels, extents are pixels at the level; either may be
+	 * given as a fraction of the image (i.e. contain a decimal point).
+	 * @return top, left, height, width at the level, clipped to the level, 
+	 * or null if the region lies outside of the image
+	 */
+	private static int[] getLevelRegion(String region, int w, int h, int lw, int lh) throws DjatokaException {
+		StringTokenizer st = new StringTokenizer(region, "{},");
+		if (st.countTokens() != 4)
+			throw new DjatokaException("Invalid region: " + region);
+		try {
+			int y = getInset(st.nextToken().trim(), h, lh);
+			int x = getInset(st.nextToken().trim(), w, lw);
+			int rh = getExtent(st.nextToken().trim(), lh);
+			int rw = getExtent(st.nextToken().trim(), lw);
+			if (y >= lh || x >= lw)
+				return null;
+			rh = Math.min(rh, lh - y);
+			rw = Math.min(rw, lw - x);
+			if (rh <= 0 || rw <= 0)
+				return null;
+			return new int[] {y, x, rh, rw};
+		} catch (NumberFormatException e) {
+			throw new DjatokaException("Invalid region: " + region);
+		}
+	}
+
+	private static int getInset(String token, int size, int levelSize) throws DjatokaException {
+		if (token.contains("."))
+			return (int) Math.round(Double.parseDouble(token) * levelSize);
+		int t = Integer.parseInt(token);
+		if (size < t)
+			throw new DjatokaException("Region inset out of bounds: " + t + ">" + size);
+		return (int) Math.round(t * (double) levelSize / size);
+	}
+
+	private static int getExtent(String token, int levelSize) {
+		if (token.contains("."))
+			return (int) Math.round(Double.parseDouble(token) * levelSize);
+		return Integer.parseInt(token);
+	}
+
+	/**
+	 * Returns the explicit target dimensions of the requested scaling, as 
+	 * applied by DjatokaExtractProcessor, or null if no scaling is applied.
+	 */
+	private static int[] getScalingTarget(DjatokaDecodeParam p, int dw, int dh) {
+		double f = p.getScalingFactor();
+		if (f != 1.0 && f > 0 && f < 3)
+			return new int[] {(int) Math.ceil(dw * f), (int) Math.ceil(dh * f)};
+		int[] dims = p.getScalingDimensions();
+		if (f != 1.0 || dims == null || dims.length != 2)
+			return null;
+		int sw = dims[0];
+		int sh = dims[1];
+		if (sw >= 3 * dw || sh >= 3 * dh)
+			return null;
+		// See ImageProcessingUtils.scale(BufferedImage, int, int)
+		if (sw == -1 || sh == -1) {
+			int tl = Math.max(sw, sh);
+			if (dw > dh) {
+				sw = tl;
+				sh = 0;
+			} else {
+				sh = tl;
+				sw = 0;
+			}
+		}
+		if (sw == 0 && sh == 0)
+			return null;
+		if (sw == 0)
+			sw = (int) Math.ceil(dw * ((double) sh / dh));
+		if (sh == 0)
+			sh = (int) Math.ceil(dh * ((double) sw / dw));
+		if (sw <= 0 || sh <= 0)
+			return null;
+		return new int[] {sw, sh};
+	}
+
+	private static int[] getOutputSize(int dw, int dh, DjatokaDecodeParam c) {
+		if (c.getRotationDegree() == 90 || c.getRotationDegree() == 270) {
+			int t = dw;
+			dw = dh;
+			dh = t;
+		}
+		if (c.getScalingDimensions() != null)
+			return getScaledSize(dw, dh, c.getScalingDimensions()[0], c.getScalingDimensions()[1]);
+		return new int[] {dw, dh};
+	}
+
+	/**
+	 * Returns the output size of ImageProcessingUtils.getScaledInstance() 
+	 * with keepAspect, using the same arithmetic.
+	 */
+	private static int[] getScaledSize(int dw, int dh, int tw, int th) {
+		float factorX = (float) dw / tw;
+		float factorY = (float) dh / th;
+		float factor = Math.max(factorX, factorY);
+		return new int[] {Math.round(dw / factor), Math.round(dh / factor)};
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.util;
+
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+import gov.lanl.adore.djatoka.DjatokaException;
+
+import java.awt.Rectangle;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the number of Kakadu threads used by each decode. A decode gets 
+ * an equal share of the processors among the decodes running when it 
+ * starts, limited by the size of its region, so a large region decodes on
+ * all cores when the server is quiet while concurrent decodes do not 
+ * oversubscribe the processors when it is busy. Callers pair each 
+ * acquire() with a release() once the decode completes.
+ * @author agent
+ *
+ */
+public class DecodeThreads {
+	/** Region pixels needed to make use of each additional thread */
+	public static final long PIXELS_PER_THREAD = 1 << 17;
+	private static final int CPUS = Runtime.getRuntime().availableProcessors();
+	private static final AtomicInteger active = new AtomicInteger();
+	private static volatile int maxThreads = CPUS;
+
+	private DecodeThreads() {}
+
+	/**
+	 * Sets the maximum number of threads used by a single decode; 0 disables
+	 * thread selection, leaving the Kakadu default in effect.
+	 * @param max maximum number of threads used by a single decode
+	 */
+	public static void setMaxThreads(int max) {
+		maxThreads = Math.max(0, max);
+	}
+
+	/**
+	 * Registers the start of a decode and returns its thread count.
+	 * @param pixels number of pixels in the decoded region, or 
+	 * Long.MAX_VALUE if not known
+	 * @return number of threads, or 0 if thread selection is disabled
+	 */
+	public static int acquire(long pixels) {
+		int n = active.incrementAndGet();
+		int max = maxThreads;
+		if (max == 0)
+			return 0;
+		int share = Math.max(1, CPUS / n);
+		long bySize = Math.max(1, pixels / PIXELS_PER_THREAD);
+		return (int) Math.min(Math.min(share, max), bySize);
+	}
+
+	/**
+	 * Registers the end of a decode started with acquire()
+	 */
+	public static void release() {
+		active.decrementAndGet();
+	}
+
+	/**
+	 * Returns the number of decodes currently running
+	 * @return the number of decodes currently running
+	 */
+	public static int getActiveCount() {
+		return active.get();
+	}
+
+	/**
+	 * Returns the number of pixels decoded for the request, before scaling.
+	 * @param r ImageRecord populated with image metadata
+	 * @param params decode parameters
+	 * @return number of region pixels at the decoded level, or Long.MAX_VALUE 
+	 * if it cannot be determined
+	 */
+	public static long getPixels(ImageRecord r, DjatokaDecodeParam params) {
+		if (r == null || r.getWidth() <= 0 || r.getHeight() <= 0)
+			return Long.MAX_VALUE;
+		try {
+			DjatokaDecodeParam c = DecodeParamNormalizer.resolve(r, params);
+			Rectangle rect = (c != null) ? DecodeParamNormalizer.getLevelRect(r, c) : null;
+			if (rect != null)
+				return (long) rect.width * rect.height;
+		} catch (DjatokaException e) {
+		}
+		return Long.MAX_VALUE;
+	}
+}
@@ -28,12 +28,15 @@ import ij.io.FileInfo;
 import ij.io.Opener;
 import ij.io.TiffDecoder;
 
-import java.awt.image.AreaAveragingScaleFilter;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
-import java.awt.image.FilteredImageSource;
-import java.awt.image.ImageProducer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
 import java.io.BufferedInputStream;
 import java.io.File;
@@ -41,6 +44,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Hashtable;
 
 import org.apache.log4j.Logger;
@@ -54,46 +58,203 @@ public class ImageProcessingUtils {
 	static Logger logger = Logger.getLogger(ImageProcessingUtils.class);
     /**
      * Perform a rotation of the provided BufferedImage using degrees of
-     * 90, 180, or 270.
+     * 90, 180, or 270. The rotated image has the type of the provided image.
+     * Pixels of int packed (e.g. TYPE_INT_RGB) and byte interleaved (e.g. 
+     * TYPE_3BYTE_BGR, TYPE_BYTE_GRAY) images are copied as primitive samples 
+     * in square blocks, so that reads and writes both stay in cache; large 
+     * images are rotated in parallel strips.
      * @param bi BufferedImage to be rotated
      * @param degree 
      * @return rotated BufferedImage instance
      */
 	public static BufferedImage rotate(BufferedImage bi, int degree) {
-		int width = bi.getWidth();
-		int height = bi.getHeight();
-
-		BufferedImage biFlip;
-		if (degree == 90 || degree == 270)
-		    biFlip = new BufferedImage(height, width, bi.getType());
-		else if (degree == 180)
-			biFlip = new BufferedImage(width, height, bi.getType());
-		else 
+		final int w = bi.getWidth();
+		final int h = bi.getHeight();
+		if (degree != 90 && degree != 180 && degree != 270)
 			return bi;
-
-		if (degree == 90) {
-			for (int i = 0; i < width; i++)
-				for (int j = 0; j < height; j++)
-					biFlip.setRGB(height- j - 1, i, bi.getRGB(i, j));
-		}
-		
-		if (degree == 180) {
-			for (int i = 0; i < width; i++)
-				for (int j = 0; j < height; j++)
-					biFlip.setRGB(width - i - 1, height - j - 1, bi.getRGB(i, j));
-		}
-
-		if (degree == 270) {
-			for (int i = 0; i < width; i++)
-				for (int j = 0; j < height; j++)
-					biFlip.setRGB(j, width - i - 1, bi.getRGB(i, j));
+		final int deg = degree;
+		final WritableRaster src = bi.getRaster();
+		final WritableRaster dst = (degree == 180) ? src.createCompatibleWritableRaster(w, h)
+				: src.createCompatibleWritableRaster(h, w);
+		BufferedImage biFlip = new BufferedImage(bi.getColorModel(), dst, bi.isAlphaPremultiplied(), null);
+		final SampleLayout s = SampleLayout.get(src);
+		final SampleLayout d = SampleLayout.get(dst);
+		Strips.Task task;
+		if (s != null && d != null && s.isCompatible(d) && s.data instanceof int[]) {
+			task = new Strips.Task() {
+				public void run(int y0, int y1) {
+					rotate((int[]) s.data, s, (int[]) d.data, d, w, h, deg, y0, y1);
+				}
+			};
+		} else if (s != null && d != null && s.isCompatible(d) && s.data instanceof byte[]) {
+			task = new Strips.Task() {
+				public void run(int y0, int y1) {
+					rotate((byte[]) s.data, s, (byte[]) d.data, d, w, h, deg, y0, y1);
+				}
+			};
+		} else {
+			// Other layouts are copied a pixel at a time, without color conversion
+			task = new Strips.Task() {
+				public void run(int y0, int y1) {
+					Object px = null;
+					for (int j = y0; j < y1; j++) {
+						for (int i = 0; i < w; i++) {
+							px = src.getDataElements(i, j, px);
+							if (deg == 90)
+								dst.setDataElements(h - j - 1, i, px);
+							else if (deg == 180)
+								dst.setDataElements(w - i - 1, h - j - 1, px);
+							else
+								dst.setDataElements(j, w - i - 1, px);
+						}
+					}
+				}
+			};
 		}
+		Strips.run(h, (long) w * h, task);
 		
 		bi.flush();
 		bi = null;
 		
 		return biFlip;
 	}
+
+	private static final int BLOCK = 64;
+
+	/**
+	 * Rotates source rows y0 to y1 of an int packed raster, in blocks
+	 */
+	private static void rotate(int[] src, SampleLayout s, int[] dst, SampleLayout d, 
+			int w, int h, int degree, int y0, int y1) {
+		for (int by = y0; by < y1; by += BLOCK) {
+			int ey = Math.min(by + BLOCK, y1);
+			for (int bx = 0; bx < w; bx += BLOCK) {
+				int ex = Math.min(bx + BLOCK, w);
+				for (int j = by; j < ey; j++) {
+					int si = s.offset + j * s.stride + bx;
+					if (degree == 90) {
+						int di = d.offset + bx * d.stride + (h - j - 1);
+						for (int i = bx; i < ex; i++, si++, di += d.stride)
+							dst[di] = src[si];
+					} else if (degree == 180) {
+						int di = d.offset + (h - j - 1) * d.stride + (w - bx - 1);
+						for (int i = bx; i < ex; i++, si++, di--)
+							dst[di] = src[si];
+					} else {
+						int di = d.offset + (w - bx - 1) * d.stride + j;
+						for (int i = bx; i < ex; i++, si++, di -= d.stride)
+							dst[di] = src[si];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rotates source rows y0 to y1 of a byte interleaved raster, in blocks
+	 */
+	private static void rotate(byte[] src, SampleLayout s, byte[] dst, SampleLayout d, 
+			int w, int h, int degree, int y0, int y1) {
+		int ps = s.pixelStride;
+		for (int by = y0; by < y1; by += BLOCK) {
+			int ey = Math.min(by + BLOCK, y1);
+			for (int bx = 0; bx < w; bx += BLOCK) {
+				int ex = Math.min(bx + BLOCK, w);
+				for (int j = by; j < ey; j++) {
+					int si = s.offset + j * s.stride + bx * ps;
+					int di;
+					int step;
+					if (degree == 90) {
+						di = d.offset + bx * d.stride + (h - j - 1) * ps;
+						step = d.stride;
+					} else if (degree == 180) {
+						di = d.offset + (h - j - 1) * d.stride + (w - bx - 1) * ps;
+						step = -ps;
+					} else {
+						di = d.offset + (w - bx - 1) * d.stride + j * ps;
+						step = -d.stride;
+					}
+					if (ps == 1) {
+						for (int i = bx; i < ex; i++, si++, di += step)
+							dst[di] = src[si];
+					} else {
+						for (int i = bx; i < ex; i++, si += ps, di += step)
+							for (int k = 0; k < ps; k++)
+								dst[di + k] = src[si + k];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Location of the samples of a raster with a single bank of int packed 
+	 * or byte interleaved pixels.
+	 */
+	private static final class SampleLayout {
+		Object data;
+		int offset;
+		int stride;
+		int pixelStride;
+		int[] bandOffsets;
+
+		static SampleLayout get(Raster r) {
+			if (r.getDataBuffer().getNumBanks() != 1)
+				return null;
+			SampleModel sm = r.getSampleModel();
+			SampleLayout l = new SampleLayout();
+			int tx = -r.getSampleModelTranslateX() + r.getMinX();
+			int ty = -r.getSampleModelTranslateY() + r.getMinY();
+			if (sm instanceof SinglePixelPackedSampleModel && r.getDataBuffer() instanceof DataBufferInt) {
+				SinglePixelPackedSampleModel sp = (SinglePixelPackedSampleModel) sm;
+				l.data = ((DataBufferInt) r.getDataBuffer()).getData();
+				l.stride = sp.getScanlineStride();
+				l.pixelStride = 1;
+				l.offset = r.getDataBuffer().getOffset() + ty * l.stride + tx;
+				l.bandOffsets = sp.getBitOffsets();
+				return l;
+			}
+			if (sm instanceof PixelInterleavedSampleModel && r.getDataBuffer() instanceof DataBufferByte) {
+				PixelInterleavedSampleModel pi = (PixelInterleavedSampleModel) sm;
+				int[] bo = pi.getBandOffsets();
+				for (int b = 0; b < bo.length; b++)
+					if (bo[b] < 0 || bo[b] >= pi.getPixelStride())
+						return null;
+				l.data = ((DataBufferByte) r.getDataBuffer()).getData();
+				l.stride = pi.getScanlineStride();
+				l.pixelStride = pi.getPixelStride();
+				l.offset = r.getDataBuffer().getOffset() + ty * l.stride + tx * l.pixelStride;
+				l.bandOffsets = bo;
+				return l;
+			}
+			return null;
+		}
+
+		boolean isCompatible(SampleLayout d) {
+			return data.getClass() == d.data.getClass() && pixelStride == d.pixelStride
+				&& Arrays.equals(bandOffsets, d.bandOffsets);
+		}
+	}
+
+	/**
+	 * Copies a rectangle of the provided BufferedImage into a new image of
+	 * the same type, which does not share pixels with the source.
+	 * @param bi BufferedImage to be cropped
+	 * @param x left of the rectangle
+	 * @param y top of the rectangle
+	 * @param w width of the rectangle
+	 * @param h height of the rectangle
+	 * @return cropped copy of the provided BufferedImage
+	 */
+	public static BufferedImage crop(BufferedImage bi, int x, int y, int w, int h) {
+		if (x == 0 && y == 0 && w == bi.getWidth() && h == bi.getHeight())
+			return bi;
+		WritableRaster src = bi.getRaster().createWritableChild(
+				bi.getRaster().getMinX() + x, bi.getRaster().getMinY() + y, w, h, 0, 0, null);
+		WritableRaster dst = src.createCompatibleWritableRaster(w, h);
+		dst.setRect(src);
+		return new BufferedImage(bi.getColorModel(), dst, bi.isAlphaPremultiplied(), null);
+	}
 	
 	/**
 	 * Return the number of resolution levels the djatoka API will generate
@@ -150,7 +311,8 @@ public class ImageProcessingUtils {
 	}	
 
 	/**
-	 * ref: http://www.luniks.net/luniksnet/download/java/imageScaling/ImageScaler.java
+	 * Scale provided BufferedImage to the target dimensions using the default
+	 * filter of ImageResampler.
 	 * @param img BufferedImage to be scaled.
 	 * @param targetWidth target width in pixels
 	 * @param targetHeight target height size in pixels
@@ -168,16 +330,8 @@ public class ImageProcessingUtils {
 			factorY = factorX;
 		}
 
-		// The scaling will be nice smooth with this filter
-		AreaAveragingScaleFilter scaleFilter = new AreaAveragingScaleFilter(
-				Math.round(currentWidth / factorX), Math.round(currentHeight
-						/ factorY));
-		ImageProducer producer = new FilteredImageSource(img.getSource(),
-				scaleFilter);
-		ImageGenerator generator = new ImageGenerator();
-		producer.startProduction(generator);
-		BufferedImage scaled = generator.getImage();
-		return scaled;
+		return ImageResampler.resample(img, Math.round(currentWidth / factorX), 
+				Math.round(currentHeight / factorY));
 	}
 	
 	/**
@@ -310,7 +464,9 @@ public class ImageProcessingUtils {
 	}
 	
 	/** 
-	 * Populates a BufferedImage from a RenderedImage
+	 * Populates a BufferedImage from a RenderedImage, keeping its colour and
+	 * sample models. The raster of an image consisting of a single tile is 
+	 * used as is rather than copied.
 	 * Source: http://www.jguru.com/faq/view.jsp?EID=114602
 	 * @param img RenderedImage to be converted to BufferedImage
 	 * @return BufferedImage with complete raster data
@@ -322,7 +478,6 @@ public class ImageProcessingUtils {
 		ColorModel cm = img.getColorModel();
 		int width = img.getWidth();
 		int height = img.getHeight();
-		WritableRaster raster = cm.createCompatibleWritableRaster(width, height);
 		boolean isAlphaPremultiplied = cm.isAlphaPremultiplied();
 		Hashtable properties = new Hashtable();
 		String[] keys = img.getPropertyNames();
@@ -331,6 +486,14 @@ public class ImageProcessingUtils {
 				properties.put(keys[i], img.getProperty(keys[i]));
 			}
 		}
+		if (img.getNumXTiles() == 1 && img.getNumYTiles() == 1 && img.getMinX() == 0 && img.getMinY() == 0) {
+			Raster tile = img.getTile(img.getMinTileX(), img.getMinTileY());
+			if (tile instanceof WritableRaster && tile.getMinX() == 0 && tile.getMinY() == 0
+					&& tile.getWidth() == width && tile.getHeight() == height
+					&& cm.isCompatibleRaster(tile))
+				return new BufferedImage(cm, (WritableRaster) tile, isAlphaPremultiplied, properties);
+		}
+		WritableRaster raster = cm.createCompatibleWritableRaster(width, height);
 		BufferedImage result = new BufferedImage(cm, raster, isAlphaPremultiplied, properties);
 		img.copyData(raster);
 		return result;
@@ -42,6 +42,8 @@ public class ImageRecord {
 	private int compositingLayers;
 	private int bitDepth;
 	private int numChannels;
+	private long fileLength;
+	private long fileModified;
 	private Map<String, String> instProps;
 	
 	/**
@@ -244,6 +246,34 @@ public class ImageRecord {
 	public void setNumChannels(int numChannels) {
 		this.numChannels = numChannels;
 	}
+
+	/**
+	 * Gets the length of the image file when its metadata was last validated
+	 * @return the length of the image file, or 0 if not known
+	 */
+	public long getFileLength() {
+		return fileLength;
+	}
+
+	/**
+	 * Gets the modification time of the image file when its metadata was 
+	 * last validated
+	 * @return the modification time of the image file, or 0 if not known
+	 */
+	public long getFileModified() {
+		return fileModified;
+	}
+
+	/**
+	 * Sets the length and modification time of the image file the metadata 
+	 * was validated against
+	 * @param length the length of the image file, or 0 if not known
+	 * @param modified the modification time of the image file, or 0 if not known
+	 */
+	public void setFileIdentity(long length, long modified) {
+		this.fileLength = length;
+		this.fileModified = modified;
+	}
 	
     /**
 	 * Sets InputStream, ByteArray, URL, etc.
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.util;
+
+import gov.lanl.util.ConcurrentLinkedHashMap;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared, bounded cache of JPEG 2000 image metadata (dimensions, levels, 
+ * layers, bit depth, channels), so the codestream headers of an image are
+ * parsed once rather than on every request. Entries are keyed by absolute
+ * file path and validated against the size and modification time of the
+ * file on each lookup; an entry for a file which has changed is dropped.
+ * <p>
+ * Records held by the cache are private copies; lookups copy the cached 
+ * values into the caller's ImageRecord, along with the file length and 
+ * modification time they were validated against, so callers (e.g. for 
+ * HTTP validators) need not read them from the file again.
+ * @author agent
+ *
+ */
+public class ImageRecordCache {
+	private static final int DEFAULT_SIZE = 1000;
+	private static final ConcurrentLinkedHashMap<String, Entry> cache = 
+		ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, DEFAULT_SIZE);
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong invalidations = new AtomicLong();
+
+	private ImageRecordCache() {}
+
+	/**
+	 * Sets the maximum number of images held in the cache
+	 * @param size maximum number of images held in the cache
+	 */
+	public static void setMaxSize(int size) {
+		cache.setCapacity(size);
+	}
+
+	/**
+	 * Copies the cached metadata of the image file into the ImageRecord.
+	 * @param r ImageRecord with an image file path
+	 * @return true if the metadata was cached and the file is unchanged
+	 */
+	public static boolean fill(ImageRecord r) {
+		if (r == null || r.getImageFile() == null)
+			return false;
+		File f = new File(r.getImageFile());
+		String key = f.getAbsolutePath();
+		Entry e = cache.get(key);
+		if (e == null) {
+			r.setFileIdentity(0, 0);
+			misses.incrementAndGet();
+			return false;
+		}
+		long length = f.length();
+		long lastModified = f.lastModified();
+		if (e.length != length || e.lastModified != lastModified) {
+			cache.remove(key, e);
+			r.setFileIdentity(0, 0);
+			invalidations.incrementAndGet();
+			misses.incrementAndGet();
+			return false;
+		}
+		hits.incrementAndGet();
+		copy(e.record, r);
+		r.setFileIdentity(length, lastModified);
+		return true;
+	}
+
+	/**
+	 * Adds the metadata of the image file to the cache, recording the file
+	 * length and modification time in the ImageRecord
+	 * @param file the image file described by the record
+	 * @param r populated ImageRecord
+	 */
+	public static void put(File file, ImageRecord r) {
+		if (r == null || r.getWidth() <= 0 || r.getHeight() <= 0)
+			return;
+		ImageRecord m = new ImageRecord();
+		copy(r, m);
+		long length = file.length();
+		long lastModified = file.lastModified();
+		r.setFileIdentity(length, lastModified);
+		cache.put(file.getAbsolutePath(), new Entry(length, lastModified, m));
+	}
+
+	/**
+	 * Removes the image file from the cache
+	 * @param file the image file
+	 */
+	public static void remove(File file) {
+		cache.remove(file.getAbsolutePath());
+	}
+
+	/**
+	 * Removes all images from the cache
+	 */
+	public static void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Copies the image metadata, but not the identifier, file, object or
+	 * instance properties, from one ImageRecord to another
+	 * @param from source ImageRecord
+	 * @param to target ImageRecord
+	 */
+	public static void copy(ImageRecord from, ImageRecord to) {
+		to.setWidth(from.getWidth());
+		to.setHeight(from.getHeight());
+		to.setDWTLevels(from.getDWTLevels());
+		to.setLevels(from.getLevels());
+		to.setQualityLayers(from.getQualityLayers());
+		to.setCompositingLayerCount(from.getCompositingLayerCount());
+		to.setBitDepth(from.getBitDepth());
+		to.setNumChannels(from.getNumChannels());
+	}
+
+	/**
+	 * Returns a JSON object describing the cache size and hit rates
+	 * @return JSON object describing the cache
+	 */
+	public static String getStatus() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("{");
+		sb.append("\"entries\": \"" + cache.size() + "\", ");
+		sb.append("\"hits\": \"" + hits.get() + "\", ");
+		sb.append("\"misses\": \"" + misses.get() + "\", ");
+		sb.append("\"invalidations\": \"" + invalidations.get() + "\" ");
+		sb.append("}");
+		return sb.toString();
+	}
+
+	private static final class Entry {
+		final long length;
+		final long lastModified;
+		final ImageRecord record;
+
+		Entry(long length, long lastModified, ImageRecord record) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.record = record;
+		}
+	}
+}
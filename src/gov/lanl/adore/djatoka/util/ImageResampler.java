@@ -0,0 +1,441 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+
+/**
+ * Resamples images by operating directly on their pixel arrays (int packed 
+ * or byte interleaved samples), in two separable passes (horizontal and vertical) using fixed point filter
+ * weights computed once per row and column. The pass which produces the 
+ * smaller intermediate image is applied first. Large reductions using the
+ * bilinear or Lanczos filters first area average to twice the target size,
+ * keeping the number of filter taps per pixel small.
+ * <p>
+ * Each pass of a large image is split into strips of rows, processed in
+ * parallel (see Strips).
+ * <p>
+ * Output images have the layout of the source image (see PixelLayout), 
+ * each sample, including alpha, being resampled independently.
+ * @author agent
+ *
+ */
+public class ImageResampler {
+
+	/**
+	 * Resampling filters
+	 */
+	public enum Filter {
+		/** Area averaging, the weight of a source pixel is its coverage of the output pixel */
+		BOX(0.5),
+		/** Triangle filter, widened when reducing */
+		BILINEAR(1.0),
+		/** Lanczos windowed sinc with 3 lobes, widened when reducing */
+		LANCZOS(3.0);
+
+		private final double support;
+
+		private Filter(double support) {
+			this.support = support;
+		}
+
+		double weight(double x) {
+			x = Math.abs(x);
+			switch (this) {
+			case BILINEAR:
+				return (x < 1.0) ? 1.0 - x : 0.0;
+			case LANCZOS:
+				if (x >= 3.0)
+					return 0.0;
+				return sinc(x) * sinc(x / 3.0);
+			default:
+				return (x < 0.5) ? 1.0 : 0.0;
+			}
+		}
+
+		private static double sinc(double x) {
+			if (x == 0.0)
+				return 1.0;
+			x *= Math.PI;
+			return Math.sin(x) / x;
+		}
+	}
+
+	private static final int PRECISION_BITS = 22;
+	private static final int ROUND = 1 << (PRECISION_BITS - 1);
+	private static volatile Filter defaultFilter = Filter.BOX;
+
+	private ImageResampler() {}
+
+	/**
+	 * Sets the filter used by resample(BufferedImage, int, int)
+	 * @param filter the default resampling filter
+	 */
+	public static void setDefaultFilter(Filter filter) {
+		defaultFilter = filter;
+	}
+
+	/**
+	 * Returns the filter used by resample(BufferedImage, int, int)
+	 * @return the default resampling filter
+	 */
+	public static Filter getDefaultFilter() {
+		return defaultFilter;
+	}
+
+	/**
+	 * Resamples the image to the provided dimensions using the default filter
+	 * @param bi BufferedImage to be resampled
+	 * @param w output width in pixels
+	 * @param h output height in pixels
+	 * @return new image of the provided dimensions, in the layout of bi
+	 */
+	public static BufferedImage resample(BufferedImage bi, int w, int h) {
+		return resample(bi, w, h, defaultFilter);
+	}
+
+	/**
+	 * Resamples the image to the provided dimensions
+	 * @param bi BufferedImage to be resampled
+	 * @param w output width in pixels
+	 * @param h output height in pixels
+	 * @param filter resampling filter
+	 * @return new image of the provided dimensions, in the layout of bi
+	 */
+	public static BufferedImage resample(BufferedImage bi, int w, int h, Filter filter) {
+		w = Math.max(1, w);
+		h = Math.max(1, h);
+		bi = PixelLayout.convert(bi, "scale");
+		int sw = bi.getWidth();
+		int sh = bi.getHeight();
+		// Area average most of a large reduction; the filter shapes the last 2x
+		boolean reduce = filter != Filter.BOX && sw > 4 * w && sh > 4 * h;
+		BufferedImage out = PixelLayout.createCompatible(bi, w, h);
+		DataBuffer db = out.getRaster().getDataBuffer();
+		if (db instanceof DataBufferInt) {
+			boolean alpha = usesTopByte(bi);
+			int[] src = (int[]) getSamples(bi);
+			if (reduce) {
+				src = resample(src, sw, sh, 2 * w, 2 * h, alpha, Filter.BOX, null);
+				sw = 2 * w;
+				sh = 2 * h;
+			}
+			resample(src, sw, sh, w, h, alpha, filter, ((DataBufferInt) db).getData());
+		} else {
+			int bands = bi.getRaster().getNumBands();
+			byte[] src = (byte[]) getSamples(bi);
+			if (reduce) {
+				src = resample(src, sw, sh, 2 * w, 2 * h, bands, Filter.BOX, null);
+				sw = 2 * w;
+				sh = 2 * h;
+			}
+			resample(src, sw, sh, w, h, bands, filter, ((DataBufferByte) db).getData());
+		}
+		return out;
+	}
+
+	private static int[] resample(int[] src, int sw, int sh, int w, int h, boolean alpha, Filter filter, int[] dst) {
+		if (dst == null)
+			dst = new int[w * h];
+		if (sw == w && sh == h) {
+			System.arraycopy(src, 0, dst, 0, w * h);
+		} else if (sw == w) {
+			vertical(src, w, alpha, getWeights(sh, h, filter), dst);
+		} else if (sh == h) {
+			horizontal(src, sw, sh, alpha, getWeights(sw, w, filter), dst);
+		} else if ((long) w * sh <= (long) sw * h) {
+			int[] tmp = new int[w * sh];
+			horizontal(src, sw, sh, alpha, getWeights(sw, w, filter), tmp);
+			vertical(tmp, w, alpha, getWeights(sh, h, filter), dst);
+		} else {
+			int[] tmp = new int[sw * h];
+			vertical(src, sw, alpha, getWeights(sh, h, filter), tmp);
+			horizontal(tmp, sw, h, alpha, getWeights(sw, w, filter), dst);
+		}
+		return dst;
+	}
+
+	private static byte[] resample(byte[] src, int sw, int sh, int w, int h, int bands, Filter filter, byte[] dst) {
+		if (dst == null)
+			dst = new byte[w * h * bands];
+		if (sw == w && sh == h) {
+			System.arraycopy(src, 0, dst, 0, w * h * bands);
+		} else if (sw == w) {
+			vertical(src, w * bands, getWeights(sh, h, filter), dst);
+		} else if (sh == h) {
+			horizontal(src, sw, sh, bands, getWeights(sw, w, filter), dst);
+		} else if ((long) w * sh <= (long) sw * h) {
+			byte[] tmp = new byte[w * sh * bands];
+			horizontal(src, sw, sh, bands, getWeights(sw, w, filter), tmp);
+			vertical(tmp, w * bands, getWeights(sh, h, filter), dst);
+		} else {
+			byte[] tmp = new byte[sw * h * bands];
+			vertical(src, sw * bands, getWeights(sh, h, filter), tmp);
+			horizontal(tmp, sw, h, bands, getWeights(sw, w, filter), dst);
+		}
+		return dst;
+	}
+
+	/**
+	 * Resamples each row of src (sw x rows) into dst (weights.out x rows)
+	 */
+	private static void horizontal(final int[] src, final int sw, int rows, final boolean alpha,
+			final Weights wt, final int[] dst) {
+		final int w = wt.out;
+		Strips.run(rows, (long) w * rows, new Strips.Task() {
+			public void run(int y0, int y1) {
+				for (int y = y0; y < y1; y++) {
+					int row = y * sw;
+					int o = y * w;
+					for (int x = 0; x < w; x++) {
+						int a = ROUND, r = ROUND, g = ROUND, b = ROUND;
+						int s = row + wt.start[x];
+						int k = x * wt.taps;
+						for (int n = wt.count[x]; n > 0; n--, s++, k++) {
+							int p = src[s];
+							int c = wt.coef[k];
+							if (alpha)
+								a += (p >>> 24) * c;
+							r += ((p >> 16) & 0xff) * c;
+							g += ((p >> 8) & 0xff) * c;
+							b += (p & 0xff) * c;
+						}
+						dst[o + x] = pack(alpha ? a : 0, r, g, b);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Resamples each column of src (w x weights.in) into dst (w x weights.out)
+	 */
+	private static void vertical(final int[] src, final int w, final boolean alpha, 
+			final Weights wt, final int[] dst) {
+		Strips.run(wt.out, (long) w * wt.out, new Strips.Task() {
+			public void run(int y0, int y1) {
+				int[] a = alpha ? new int[w] : null;
+				int[] r = new int[w];
+				int[] g = new int[w];
+				int[] b = new int[w];
+				for (int y = y0; y < y1; y++) {
+					if (alpha)
+						Arrays.fill(a, ROUND);
+					Arrays.fill(r, ROUND);
+					Arrays.fill(g, ROUND);
+					Arrays.fill(b, ROUND);
+					int k = y * wt.taps;
+					int row = wt.start[y] * w;
+					for (int n = wt.count[y]; n > 0; n--, k++, row += w) {
+						int c = wt.coef[k];
+						for (int x = 0; x < w; x++) {
+							int p = src[row + x];
+							r[x] += ((p >> 16) & 0xff) * c;
+							g[x] += ((p >> 8) & 0xff) * c;
+							b[x] += (p & 0xff) * c;
+						}
+						if (alpha) {
+							for (int x = 0; x < w; x++)
+								a[x] += (src[row + x] >>> 24) * c;
+						}
+					}
+					int o = y * w;
+					for (int x = 0; x < w; x++)
+						dst[o + x] = pack(alpha ? a[x] : 0, r[x], g[x], b[x]);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Resamples each row of interleaved samples src (sw x rows x bands) into
+	 * dst (weights.out x rows x bands)
+	 */
+	private static void horizontal(final byte[] src, final int sw, int rows, final int bands,
+			final Weights wt, final byte[] dst) {
+		final int w = wt.out;
+		Strips.run(rows, (long) w * rows, new Strips.Task() {
+			public void run(int y0, int y1) {
+				for (int y = y0; y < y1; y++) {
+					int row = y * sw * bands;
+					int o = y * w * bands;
+					for (int x = 0; x < w; x++) {
+						int k0 = x * wt.taps;
+						int s0 = row + wt.start[x] * bands;
+						for (int i = 0; i < bands; i++) {
+							int v = ROUND;
+							int s = s0 + i;
+							int k = k0;
+							for (int n = wt.count[x]; n > 0; n--, s += bands, k++)
+								v += (src[s] & 0xff) * wt.coef[k];
+							dst[o++] = (byte) clamp(v >> PRECISION_BITS);
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Resamples each column of src (w samples x weights.in) into dst (w 
+	 * samples x weights.out); interleaved bands are independent columns.
+	 */
+	private static void vertical(final byte[] src, final int w, final Weights wt, final byte[] dst) {
+		Strips.run(wt.out, (long) w * wt.out, new Strips.Task() {
+			public void run(int y0, int y1) {
+				int[] v = new int[w];
+				for (int y = y0; y < y1; y++) {
+					Arrays.fill(v, ROUND);
+					int k = y * wt.taps;
+					int row = wt.start[y] * w;
+					for (int n = wt.count[y]; n > 0; n--, k++, row += w) {
+						int c = wt.coef[k];
+						for (int x = 0; x < w; x++)
+							v[x] += (src[row + x] & 0xff) * c;
+					}
+					int o = y * w;
+					for (int x = 0; x < w; x++)
+						dst[o + x] = (byte) clamp(v[x] >> PRECISION_BITS);
+				}
+			}
+		});
+	}
+
+	private static int pack(int a, int r, int g, int b) {
+		return (clamp(a >> PRECISION_BITS) << 24) | (clamp(r >> PRECISION_BITS) << 16) 
+			| (clamp(g >> PRECISION_BITS) << 8) | clamp(b >> PRECISION_BITS);
+	}
+
+	private static int clamp(int v) {
+		return (v < 0) ? 0 : ((v > 255) ? 255 : v);
+	}
+
+	/**
+	 * Fixed point weights of the source pixels contributing to each output 
+	 * pixel along one axis.
+	 */
+	private static final class Weights {
+		final int out;
+		final int taps;
+		final int[] start;
+		final int[] count;
+		final int[] coef;
+
+		Weights(int out, int taps) {
+			this.out = out;
+			this.taps = taps;
+			this.start = new int[out];
+			this.count = new int[out];
+			this.coef = new int[out * taps];
+		}
+	}
+
+	private static Weights getWeights(int in, int out, Filter filter) {
+		double scale = (double) in / out;
+		double fscale = Math.max(1.0, scale);
+		double support = filter.support * fscale;
+		int taps = (int) Math.ceil(support) * 2 + 1;
+		Weights wt = new Weights(out, taps);
+		double[] v = new double[taps];
+		for (int i = 0; i < out; i++) {
+			double center = (i + 0.5) * scale;
+			int min;
+			int max;
+			if (filter == Filter.BOX) {
+				// Coverage of each source pixel by the output pixel, as AreaAveragingScaleFilter
+				double lo = i * scale;
+				double hi = lo + scale;
+				min = (int) Math.floor(lo);
+				max = Math.min(in, (int) Math.ceil(hi));
+				for (int x = min; x < max; x++)
+					v[x - min] = Math.min(hi, x + 1) - Math.max(lo, x);
+			} else {
+				min = Math.max(0, (int) Math.floor(center - support));
+				max = Math.min(in, (int) Math.ceil(center + support));
+				for (int x = min; x < max; x++)
+					v[x - min] = filter.weight((x + 0.5 - center) / fscale);
+			}
+			int n = Math.min(max - min, taps);
+			double total = 0;
+			for (int j = 0; j < n; j++)
+				total += v[j];
+			int k = i * taps;
+			for (int j = 0; j < n; j++)
+				wt.coef[k + j] = (int) Math.round(v[j] / total * (1 << PRECISION_BITS));
+			wt.start[i] = min;
+			wt.count[i] = n;
+		}
+		return wt;
+	}
+
+	/**
+	 * Returns true if a sample (usually alpha) of an int packed image is held
+	 * in the top byte, which is otherwise left at zero.
+	 */
+	private static boolean usesTopByte(BufferedImage bi) {
+		for (int m : ((SinglePixelPackedSampleModel) bi.getSampleModel()).getBitMasks()) {
+			if ((m & 0xff000000) != 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the int packed or byte interleaved samples of the image, in 
+	 * rows of exactly the image width, sharing the pixel array of the image 
+	 * where it is laid out that way rather than copying it.
+	 */
+	private static Object getSamples(BufferedImage bi) {
+		int w = bi.getWidth();
+		int h = bi.getHeight();
+		Raster raster = bi.getRaster();
+		SampleModel sm = raster.getSampleModel();
+		int bands = raster.getNumBands();
+		boolean packed;
+		if (sm instanceof SinglePixelPackedSampleModel)
+			packed = ((SinglePixelPackedSampleModel) sm).getScanlineStride() == w;
+		else
+			packed = ((ComponentSampleModel) sm).getScanlineStride() == w * bands
+				&& ((ComponentSampleModel) sm).getPixelStride() == bands;
+		if (packed && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+				&& raster.getDataBuffer().getOffset() == 0) {
+			DataBuffer db = raster.getDataBuffer();
+			if (db instanceof DataBufferInt && ((DataBufferInt) db).getData().length == w * h)
+				return ((DataBufferInt) db).getData();
+			if (db instanceof DataBufferByte && ((DataBufferByte) db).getData().length == w * h * bands)
+				return ((DataBufferByte) db).getData();
+		}
+		// Sub-image or padded rows; copy the samples into a packed raster of the same layout
+		BufferedImage copy = PixelLayout.createCompatible(bi, w, h);
+		copy.getRaster().setRect(raster);
+		DataBuffer db = copy.getRaster().getDataBuffer();
+		if (db instanceof DataBufferInt)
+			return ((DataBufferInt) db).getData();
+		return ((DataBufferByte) db).getData();
+	}
+}
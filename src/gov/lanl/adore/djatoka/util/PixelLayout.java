@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.util;
+
+import java.awt.Graphics2D;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Raster layout policy of the pixel pipeline. Each request is decoded or 
+ * read into a single layout, chosen from the number of components of the 
+ * source, and the stages which follow (scaling, rotation, tile composition, 
+ * transforms) produce images of that same layout rather than converting to
+ * a fixed type.
+ * <p>
+ * Single component sources use TYPE_BYTE_GRAY and colour sources use 
+ * TYPE_INT_RGB, the layout written by the Kakadu region decompressor. 
+ * Images read in another of the supported 8-bit layouts (e.g. the 
+ * TYPE_3BYTE_BGR images of kdu_expand PPM output) are kept as they are.
+ * Samples deeper than 8 bits are reduced to 8 bits when decoded or read, as
+ * every output format is written with 8-bit samples.
+ * <p>
+ * A stage which cannot operate on the layout of an image converts it using
+ * convert(), which counts conversions by stage; the counts are reported in 
+ * the service status, so any conversion left on the hot path is visible.
+ * @author agent
+ *
+ */
+public class PixelLayout {
+	static Logger logger = Logger.getLogger(PixelLayout.class);
+	private static final ConcurrentHashMap<String, AtomicLong> conversions = new ConcurrentHashMap<String, AtomicLong>();
+
+	private PixelLayout() {}
+
+	/**
+	 * Returns the layout used for images decoded from the provided source
+	 * @param r ImageRecord populated with image metadata
+	 * @return BufferedImage type of decoded images
+	 */
+	public static int getType(ImageRecord r) {
+		return getType(r.getNumChannels());
+	}
+
+	/**
+	 * Returns the layout used for images of the provided number of components
+	 * @param channels number of components of the source, 0 if unknown
+	 * @return BufferedImage type, TYPE_BYTE_GRAY or TYPE_INT_RGB
+	 */
+	public static int getType(int channels) {
+		return (channels == 1) ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+	}
+
+	/**
+	 * Returns true if the pipeline operates on the layout of the image as is:
+	 * 8-bit samples, either packed into ints (e.g. TYPE_INT_RGB) or 
+	 * interleaved in bytes (e.g. TYPE_BYTE_GRAY, TYPE_3BYTE_BGR), with a 
+	 * direct (not indexed) colour model.
+	 * @param bi image to be checked
+	 * @return true if the image is in a supported layout
+	 */
+	public static boolean isSupported(BufferedImage bi) {
+		switch (bi.getType()) {
+		case BufferedImage.TYPE_BYTE_GRAY:
+		case BufferedImage.TYPE_3BYTE_BGR:
+		case BufferedImage.TYPE_4BYTE_ABGR:
+		case BufferedImage.TYPE_INT_RGB:
+		case BufferedImage.TYPE_INT_BGR:
+		case BufferedImage.TYPE_INT_ARGB:
+			return true;
+		case BufferedImage.TYPE_CUSTOM:
+			break;
+		default:
+			return false;
+		}
+		ColorModel cm = bi.getColorModel();
+		SampleModel sm = bi.getSampleModel();
+		if (cm instanceof IndexColorModel || cm.isAlphaPremultiplied() || sm.getNumBands() > 4)
+			return false;
+		for (int i = 0; i < sm.getNumBands(); i++) {
+			if (sm.getSampleSize(i) != 8)
+				return false;
+		}
+		if (sm instanceof SinglePixelPackedSampleModel) {
+			// Each sample in a byte of its own
+			for (int o : ((SinglePixelPackedSampleModel) sm).getBitOffsets()) {
+				if (o % 8 != 0)
+					return false;
+			}
+			return sm.getDataType() == DataBuffer.TYPE_INT;
+		}
+		if (sm instanceof PixelInterleavedSampleModel)
+			return sm.getDataType() == DataBuffer.TYPE_BYTE
+				&& ((PixelInterleavedSampleModel) sm).getPixelStride() == sm.getNumBands();
+		return false;
+	}
+
+	/**
+	 * Returns the image if its layout is supported, otherwise a copy in the 
+	 * nearest supported layout: TYPE_BYTE_GRAY for single component images,
+	 * TYPE_INT_ARGB for images with alpha and TYPE_INT_RGB for the rest. The
+	 * conversion is counted against the provided stage.
+	 * @param bi image to be converted
+	 * @param stage name of the pipeline stage requiring the conversion
+	 * @return image in a supported layout
+	 */
+	public static BufferedImage convert(BufferedImage bi, String stage) {
+		if (isSupported(bi))
+			return bi;
+		ColorModel cm = bi.getColorModel();
+		int type;
+		if (cm.hasAlpha())
+			type = BufferedImage.TYPE_INT_ARGB;
+		else if (cm.getNumColorComponents() == 1 && cm.getColorSpace().getType() == ColorSpace.TYPE_GRAY)
+			type = BufferedImage.TYPE_BYTE_GRAY;
+		else
+			type = BufferedImage.TYPE_INT_RGB;
+		BufferedImage out = new BufferedImage(bi.getWidth(), bi.getHeight(), type);
+		Graphics2D g = out.createGraphics();
+		try {
+			g.drawImage(bi, 0, 0, null);
+		} finally {
+			g.dispose();
+		}
+		count(stage);
+		logger.debug(stage + " converted image of type " + bi.getType() + " to " + type);
+		return out;
+	}
+
+	/**
+	 * Returns a new image of the provided dimensions in the layout of the 
+	 * provided image (same colour and sample models, tightly packed).
+	 * @param bi image whose layout is to be used
+	 * @param w width of the new image
+	 * @param h height of the new image
+	 * @return new, blank image
+	 */
+	public static BufferedImage createCompatible(BufferedImage bi, int w, int h) {
+		if (bi.getType() != BufferedImage.TYPE_CUSTOM)
+			return new BufferedImage(w, h, bi.getType());
+		ColorModel cm = bi.getColorModel();
+		return new BufferedImage(cm, cm.createCompatibleWritableRaster(w, h), cm.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Counts a conversion between layouts made outside of convert()
+	 * @param stage name of the pipeline stage making the conversion
+	 */
+	public static void count(String stage) {
+		AtomicLong n = conversions.get(stage);
+		if (n == null) {
+			AtomicLong c = new AtomicLong();
+			n = conversions.putIfAbsent(stage, c);
+			if (n == null)
+				n = c;
+		}
+		n.incrementAndGet();
+	}
+
+	/**
+	 * Returns the total number of conversions between layouts
+	 * @return the total number of conversions between layouts
+	 */
+	public static long getConversionCount() {
+		long n = 0;
+		for (AtomicLong c : conversions.values())
+			n += c.get();
+		return n;
+	}
+
+	/**
+	 * Returns a JSON object with the number of conversions by stage
+	 * @return JSON object with the number of conversions by stage
+	 */
+	public static String getStatus() {
+		TreeMap<String, AtomicLong> m = new TreeMap<String, AtomicLong>(conversions);
+		StringBuffer sb = new StringBuffer();
+		sb.append("{");
+		sb.append("\"conversions\": \"" + getConversionCount() + "\"");
+		for (Map.Entry<String, AtomicLong> e : m.entrySet())
+			sb.append(", \"" + e.getKey() + "\": \"" + e.getValue().get() + "\"");
+		sb.append(" }");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.util;
+
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+import gov.lanl.adore.djatoka.DjatokaException;
+import gov.lanl.adore.djatoka.IExtract;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Plans the decode of several regions of the same image. Requests at the 
+ * same level, compositing layer and quality layer limit whose regions 
+ * adjoin or overlap (e.g. neighbouring tiles of a viewer) are grouped and 
+ * decoded once as the bounding rectangle of the group, so the precincts 
+ * they share are decoded once; each region is then cropped from the group 
+ * and rotated. A group is only grown while its bounding rectangle stays 
+ * within MAX_GROUP_PIXELS and wastes little more than MAX_WASTE of its 
+ * pixels on areas no request asked for.
+ * 
+ * @author agent
+ *
+ */
+public class RegionBatch {
+	/** Largest bounding rectangle decoded for a group, in pixels at the level */
+	public static final long MAX_GROUP_PIXELS = 1 << 22;
+	private static final double MAX_WASTE = 1.25;
+
+	/**
+	 * Extracts each of the requested regions using the provided extraction
+	 * implementation, decoding each group of regions with a single call.
+	 * @param impl extraction implementation
+	 * @param input ImageRecord wrapper containing file reference, inputstream, etc.
+	 * @param params decode parameters of each region
+	 * @return extracted regions, in the order of params
+	 * @throws DjatokaException
+	 */
+	public static List<BufferedImage> process(IExtract impl, ImageRecord input, 
+			List<DjatokaDecodeParam> params) throws DjatokaException {
+		BufferedImage[] out = new BufferedImage[params.size()];
+		// Streams cannot be read more than once, nor the image opened once for all regions
+		if (input.getImageFile() == null) {
+			for (int i = 0; i < out.length; i++)
+				out[i] = impl.process(input, params.get(i));
+			return Arrays.asList(out);
+		}
+		ImageRecord r = input;
+		if (r.getWidth() <= 0 || r.getHeight() <= 0)
+			r = impl.getMetadata(new ImageRecord(input.getImageFile()));
+		for (Group g : plan(r, params)) {
+			BufferedImage bi = impl.process(input.getImageFile(), g.getParams());
+			for (int i = 0; i < g.size(); i++) {
+				if (g.fits(bi))
+					out[g.getIndex(i)] = g.extract(bi, i);
+				else
+					out[g.getIndex(i)] = impl.process(input.getImageFile(), g.getParams(i));
+			}
+		}
+		return Arrays.asList(out);
+	}
+
+	/**
+	 * Groups the requested regions into decodes. Each region is decoded at
+	 * the level its parameters select; scaled requests are planned by the
+	 * caller (see DecodeParamNormalizer).
+	 * @param r ImageRecord populated with image metadata (i.e. width, height, DWT levels)
+	 * @param params decode parameters of each region
+	 * @return groups covering every request
+	 * @throws DjatokaException if a request is invalid for the image
+	 */
+	public static List<Group> plan(ImageRecord r, List<DjatokaDecodeParam> params) throws DjatokaException {
+		ArrayList<Group> groups = new ArrayList<Group>();
+		for (int i = 0; i < params.size(); i++) {
+			DjatokaDecodeParam p = params.get(i);
+			DjatokaDecodeParam c = DecodeParamNormalizer.resolve(r, p);
+			Rectangle rect = (c != null) ? DecodeParamNormalizer.getLevelRect(r, c) : null;
+			boolean added = false;
+			if (rect != null) {
+				for (Group g : groups) {
+					if (g.add(i, p, c, rect)) {
+						added = true;
+						break;
+					}
+				}
+			}
+			if (!added)
+				groups.add(new Group(r, i, p, c, rect));
+		}
+		// Groups grown a row at a time are joined once the rows are complete
+		boolean merged = true;
+		while (merged) {
+			merged = false;
+			for (int i = 0; i < groups.size() && !merged; i++) {
+				for (int j = i + 1; j < groups.size(); j++) {
+					if (groups.get(i).merge(groups.get(j))) {
+						groups.remove(j);
+						merged = true;
+						break;
+					}
+				}
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * Requests decoded together from the bounding rectangle of their regions
+	 */
+	public static final class Group {
+		private final ImageRecord r;
+		private final ArrayList<Integer> index = new ArrayList<Integer>();
+		private final ArrayList<DjatokaDecodeParam> params = new ArrayList<DjatokaDecodeParam>();
+		private final ArrayList<DjatokaDecodeParam> canonical = new ArrayList<DjatokaDecodeParam>();
+		private final ArrayList<Rectangle> rects = new ArrayList<Rectangle>();
+		private Rectangle rect;
+		private long pixels;
+
+		Group(ImageRecord r, int i, DjatokaDecodeParam p, DjatokaDecodeParam c, Rectangle rect) {
+			this.r = r;
+			this.rect = rect;
+			index.add(Integer.valueOf(i));
+			params.add(p);
+			canonical.add(c);
+			rects.add(rect);
+			if (rect != null)
+				pixels = (long) rect.width * rect.height;
+		}
+
+		boolean add(int i, DjatokaDecodeParam p, DjatokaDecodeParam c, Rectangle next) {
+			if (!accepts(c, next, (long) next.width * next.height))
+				return false;
+			index.add(Integer.valueOf(i));
+			params.add(p);
+			canonical.add(c);
+			rects.add(next);
+			rect = rect.union(next);
+			pixels += (long) next.width * next.height;
+			return true;
+		}
+
+		boolean merge(Group g) {
+			if (g.rect == null || !accepts(g.canonical.get(0), g.rect, g.pixels))
+				return false;
+			index.addAll(g.index);
+			params.addAll(g.params);
+			canonical.addAll(g.canonical);
+			rects.addAll(g.rects);
+			rect = rect.union(g.rect);
+			pixels += g.pixels;
+			return true;
+		}
+
+		private boolean accepts(DjatokaDecodeParam c, Rectangle next, long nextPixels) {
+			if (rect == null)
+				return false;
+			DjatokaDecodeParam first = canonical.get(0);
+			if (c.getLevelReductionFactor() != first.getLevelReductionFactor()
+					|| c.getCompositingLayer() != first.getCompositingLayer()
+					|| c.getQualityLayers() != first.getQualityLayers())
+				return false;
+			Rectangle u = rect.union(next);
+			long area = (long) u.width * u.height;
+			return area <= MAX_GROUP_PIXELS && area <= (pixels + nextPixels) * MAX_WASTE;
+		}
+
+		/**
+		 * Returns the number of requests in the group
+		 * @return the number of requests in the group
+		 */
+		public int size() {
+			return index.size();
+		}
+
+		/**
+		 * Returns the position of a request of the group in the batch
+		 * @param i request of the group
+		 * @return position of the request in the batch
+		 */
+		public int getIndex(int i) {
+			return index.get(i).intValue();
+		}
+
+		/**
+		 * Returns the decode parameters of a request of the group, as provided
+		 * @param i request of the group
+		 * @return decode parameters of the request
+		 */
+		public DjatokaDecodeParam getParams(int i) {
+			return params.get(i);
+		}
+
+		/**
+		 * Returns the pixel rectangle decoded for the group at its level
+		 * @return pixel rectangle at the level, or null if the request of the 
+		 * group could not be resolved against the image
+		 */
+		public Rectangle getRect() {
+			return rect;
+		}
+
+		/**
+		 * Returns the canonical decode parameters of the bounding rectangle of
+		 * the group, unrotated, or the provided parameters of a request which
+		 * could not be resolved against the image.
+		 * @return decode parameters of the group
+		 */
+		public DjatokaDecodeParam getParams() {
+			if (rect == null)
+				return params.get(0);
+			DjatokaDecodeParam first = canonical.get(0);
+			DjatokaDecodeParam c = new DjatokaDecodeParam();
+			c.setLevel(first.getLevel());
+			c.setLevelReductionFactor(first.getLevelReductionFactor());
+			c.setCompositingLayer(first.getCompositingLayer());
+			c.setQualityLayers(first.getQualityLayers());
+			c.setCancellation(first.getCancellation());
+			c.setRegion(DecodeParamNormalizer.getRegion(r, first.getLevelReductionFactor(), rect));
+			return c;
+		}
+
+		/**
+		 * Returns true if the image holds the full bounding rectangle of the group
+		 * @param bi image decoded using getParams()
+		 * @return true if each request may be extracted from the image
+		 */
+		public boolean fits(BufferedImage bi) {
+			return rect == null || (bi != null && bi.getWidth() == rect.width && bi.getHeight() == rect.height);
+		}
+
+		/**
+		 * Crops and rotates a request of the group from the decoded group
+		 * @param bi image decoded using getParams()
+		 * @param i request of the group
+		 * @return extracted region of the request
+		 */
+		public BufferedImage extract(BufferedImage bi, int i) {
+			if (rect == null)
+				return bi;
+			Rectangle t = rects.get(i);
+			BufferedImage out = ImageProcessingUtils.crop(bi, t.x - rect.x, t.y - rect.y, t.width, t.height);
+			int rotate = canonical.get(i).getRotationDegree();
+			if (rotate > 0)
+				out = ImageProcessingUtils.rotate(out, rotate);
+			return out;
+		}
+	}
+}
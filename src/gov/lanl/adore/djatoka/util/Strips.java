@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs pixel operations on strips of rows in parallel. Strips are shared 
+ * between the calling thread and a small pool of daemon threads, the 
+ * caller taking any strip not yet started by the pool, so a busy pool 
+ * never delays an operation beyond its own work. Small images are 
+ * processed by the caller alone.
+ * @author agent
+ *
+ */
+public class Strips {
+	/** Pixels needed to make use of each additional strip */
+	public static final long STRIP_PIXELS = 1 << 16;
+	private static final int CPUS = Runtime.getRuntime().availableProcessors();
+	private static final ThreadPoolExecutor pool;
+
+	static {
+		int helpers = Math.max(1, CPUS - 1);
+		pool = new ThreadPoolExecutor(helpers, helpers, 60, TimeUnit.SECONDS, 
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger n = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "djatoka-strips-" + n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		pool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Work on a range of rows
+	 */
+	public interface Task {
+		/**
+		 * Processes rows y0 (inclusive) to y1 (exclusive)
+		 * @param y0 first row
+		 * @param y1 row following the last row
+		 */
+		public void run(int y0, int y1);
+	}
+
+	private Strips() {}
+
+	/**
+	 * Runs the task over all rows, split into strips.
+	 * @param rows number of rows
+	 * @param pixels number of pixels processed, which limits the number of strips
+	 * @param task work on a range of rows
+	 */
+	public static void run(final int rows, long pixels, final Task task) {
+		final int n = (int) Math.min(Math.min(CPUS, rows), Math.max(1, pixels / STRIP_PIXELS));
+		if (n <= 1) {
+			task.run(0, rows);
+			return;
+		}
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(n);
+		final Throwable[] error = new Throwable[1];
+		Runnable worker = new Runnable() {
+			public void run() {
+				int i;
+				while ((i = next.getAndIncrement()) < n) {
+					try {
+						task.run((int) ((long) rows * i / n), (int) ((long) rows * (i + 1) / n));
+					} catch (Throwable e) {
+						synchronized (error) {
+							error[0] = e;
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}
+		};
+		for (int i = 1; i < n; i++) {
+			try {
+				pool.execute(worker);
+			} catch (RejectedExecutionException e) {
+				break;
+			}
+		}
+		worker.run();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		synchronized (error) {
+			if (error[0] instanceof RuntimeException)
+				throw (RuntimeException) error[0];
+			if (error[0] instanceof Error)
+				throw (Error) error[0];
+		}
+	}
+}
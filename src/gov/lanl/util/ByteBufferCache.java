@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package gov.lanl.util;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded in-memory byte cache, sized in bytes rather than entries. Intended
+ * to sit in front of a file based cache; entries are promoted from the
+ * backing tier once they have been requested promoteHits times and are
+ * demoted (dropped from memory, but not from the backing tier) in least
+ * recently used order once maxBytes is exceeded. Payloads are held in
+ * direct ByteBuffers by default so they live outside of the java heap.
+ * @author agent
+ *
+ */
+public class ByteBufferCache {
+	static Logger logger = Logger.getLogger(ByteBufferCache.class);
+	private static final int CANDIDATE_FACTOR = 4;
+	private static final int MAX_CANDIDATES = 65536;
+	private final LinkedHashMap<String, ByteBuffer> map;
+	private final ConcurrentLinkedHashMap<String, AtomicInteger> candidates;
+	private final long maxBytes;
+	private final int maxEntryBytes;
+	private final int promoteHits;
+	private final boolean direct;
+	private long bytes = 0;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong promotions = new AtomicLong();
+	private final AtomicLong demotions = new AtomicLong();
+
+	/**
+	 * Creates a new byte cache.
+	 * @param maxBytes maximum number of payload bytes held in memory
+	 * @param maxEntryBytes largest single payload eligible for promotion
+	 * @param promoteHits number of backing tier hits before an entry is promoted
+	 * @param direct if true, payloads are stored in direct (off-heap) buffers
+	 */
+	public ByteBufferCache(long maxBytes, int maxEntryBytes, int promoteHits, boolean direct) {
+		if (maxBytes < 0 || maxEntryBytes < 0)
+			throw new IllegalArgumentException();
+		this.maxBytes = maxBytes;
+		this.maxEntryBytes = maxEntryBytes;
+		this.promoteHits = Math.max(1, promoteHits);
+		this.direct = direct;
+		this.map = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+		// Track promotion candidates for roughly as many entries as could fit in memory
+		int c = (int) Math.min(MAX_CANDIDATES, CANDIDATE_FACTOR * Math.max(1, maxBytes / Math.max(1, maxEntryBytes)));
+		this.candidates = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.FIFO, c);
+	}
+
+	/**
+	 * Returns a read-only view of the cached payload, or null if the key is
+	 * not held in memory. The returned buffer is private to the caller.
+	 * @param key cache key
+	 * @return read-only view of cached payload or null
+	 */
+	public ByteBuffer get(String key) {
+		ByteBuffer b;
+		synchronized (map) {
+			b = map.get(key);
+		}
+		if (b == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return b.duplicate();
+	}
+
+	/**
+	 * Records a hit against the backing tier and promotes the payload into
+	 * memory once the key has been requested promoteHits times.
+	 * @param key cache key
+	 * @param payload bytes read from the backing tier
+	 * @return true if the payload was promoted into memory
+	 */
+	public boolean offer(String key, byte[] payload) {
+		if (payload == null || !admit(key, payload.length))
+			return false;
+		put(key, payload);
+		return true;
+	}
+
+	/**
+	 * Records a hit against the backing tier without reading the payload.
+	 * Returns true once the key has been requested promoteHits times, in 
+	 * which case the caller is expected to read the payload and put() it.
+	 * @param key cache key
+	 * @param size payload size in bytes
+	 * @return true if the payload should be promoted into memory
+	 */
+	public boolean admit(String key, long size) {
+		if (size <= 0 || size > maxEntryBytes || size > maxBytes)
+			return false;
+		AtomicInteger cnt = candidates.get(key);
+		if (cnt == null) {
+			AtomicInteger n = new AtomicInteger();
+			cnt = candidates.putIfAbsent(key, n);
+			if (cnt == null)
+				cnt = n;
+		}
+		if (cnt.incrementAndGet() < promoteHits)
+			return false;
+		candidates.remove(key);
+		promotions.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Places the payload in memory, demoting least recently used entries
+	 * until the cache is within its byte limit.
+	 * @param key cache key
+	 * @param payload bytes to be held in memory
+	 */
+	public void put(String key, byte[] payload) {
+		if (payload == null || payload.length > maxEntryBytes || payload.length > maxBytes)
+			return;
+		ByteBuffer b = direct ? ByteBuffer.allocateDirect(payload.length) : ByteBuffer.allocate(payload.length);
+		b.put(payload);
+		b.flip();
+		b = b.asReadOnlyBuffer();
+		synchronized (map) {
+			ByteBuffer old = map.put(key, b);
+			if (old != null)
+				bytes -= old.capacity();
+			bytes += b.capacity();
+			Iterator<Map.Entry<String, ByteBuffer>> i = map.entrySet().iterator();
+			while (bytes > maxBytes && i.hasNext()) {
+				Map.Entry<String, ByteBuffer> e = i.next();
+				bytes -= e.getValue().capacity();
+				i.remove();
+				demotions.incrementAndGet();
+				logger.debug("demoted: " + e.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Removes the key from memory, typically because the backing tier
+	 * evicted it.
+	 * @param key cache key
+	 */
+	public void remove(String key) {
+		candidates.remove(key);
+		synchronized (map) {
+			ByteBuffer b = map.remove(key);
+			if (b != null)
+				bytes -= b.capacity();
+		}
+	}
+
+	/**
+	 * Removes all entries from memory
+	 */
+	public void clear() {
+		candidates.clear();
+		synchronized (map) {
+			map.clear();
+			bytes = 0;
+		}
+	}
+
+	/**
+	 * Returns the number of entries held in memory
+	 * @return the number of entries held in memory
+	 */
+	public int size() {
+		synchronized (map) {
+			return map.size();
+		}
+	}
+
+	/**
+	 * Returns the number of payload bytes held in memory
+	 * @return the number of payload bytes held in memory
+	 */
+	public long getSizeInBytes() {
+		synchronized (map) {
+			return bytes;
+		}
+	}
+
+	/**
+	 * Returns the maximum number of payload bytes held in memory
+	 * @return the maximum number of payload bytes held in memory
+	 */
+	public long getCapacityInBytes() {
+		return maxBytes;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getPromotionCount() {
+		return promotions.get();
+	}
+
+	public long getDemotionCount() {
+		return demotions.get();
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("{");
+		sb.append("\"entries\": \"" + size() + "\", ");
+		sb.append("\"bytes\": \"" + getSizeInBytes() + "\", ");
+		sb.append("\"capacity\": \"" + maxBytes + "\", ");
+		sb.append("\"hits\": \"" + hits.get() + "\", ");
+		sb.append("\"misses\": \"" + misses.get() + "\", ");
+		sb.append("\"promotions\": \"" + promotions.get() + "\", ");
+		sb.append("\"demotions\": \"" + demotions.get() + "\" ");
+		sb.append("}");
+		return sb.toString();
+	}
+}
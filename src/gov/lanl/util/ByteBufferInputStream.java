@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package gov.lanl.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream view of a ByteBuffer. Reads are served directly from the
+ * buffer (heap or direct) without copying the payload into an intermediate
+ * byte array. The buffer should be a private duplicate; its position is
+ * advanced as bytes are consumed.
+ * @author agent
+ *
+ */
+public class ByteBufferInputStream extends InputStream {
+	private ByteBuffer buf;
+
+	/**
+	 * Creates an InputStream reading from the current position to the
+	 * limit of the provided buffer.
+	 * @param buf buffer to be read
+	 */
+	public ByteBufferInputStream(ByteBuffer buf) {
+		this.buf = buf;
+	}
+
+	/**
+	 * Returns the underlying buffer
+	 * @return the underlying buffer
+	 */
+	public ByteBuffer getBuffer() {
+		return buf;
+	}
+
+	public int read() {
+		if (!buf.hasRemaining())
+			return -1;
+		return buf.get() & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) {
+		if (len == 0)
+			return 0;
+		if (!buf.hasRemaining())
+			return -1;
+		len = Math.min(len, buf.remaining());
+		buf.get(b, off, len);
+		return len;
+	}
+
+	public long skip(long n) {
+		if (n <= 0)
+			return 0;
+		int s = (int) Math.min(n, buf.remaining());
+		buf.position(buf.position() + s);
+		return s;
+	}
+
+	public int available() {
+		return buf.remaining();
+	}
+}
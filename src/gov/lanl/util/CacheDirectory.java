@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package gov.lanl.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent, content addressed cache directory. Entries are named by a
+ * hex digest plus extension (e.g. 3f2a...9c.jpg) and stored in a two level
+ * sharded layout (root/3f/2a/3f2a...9c.jpg), so the location of an entry is
+ * derived from its name alone and the directory itself serves as the durable
+ * index. Entries are written to a temporary file in their shard and renamed
+ * into place, so a crash never leaves a partially written entry behind.
+ * <p>
+ * A manifest (cache.properties) records the layout version; a directory
+ * written with a different layout is not adopted.
+ * @author agent
+ *
+ */
+public class CacheDirectory {
+	static Logger logger = Logger.getLogger(CacheDirectory.class);
+	private static final String MANIFEST = "cache.properties";
+	private static final String LAYOUT_VERSION = "1";
+	private static final String TMP_SUFFIX = ".tmp";
+	private final File root;
+	private final long created;
+	private volatile boolean rebuilt = false;
+
+	/**
+	 * Opens, or creates, the cache directory at the provided location.
+	 * @param root base directory of the cache
+	 * @throws IOException if the directory cannot be created or was written
+	 * by an incompatible layout
+	 */
+	public CacheDirectory(File root) throws IOException {
+		this.root = root;
+		this.created = System.currentTimeMillis();
+		if (!root.isDirectory() && !root.mkdirs())
+			throw new IOException("Unable to create cache directory " + root.getAbsolutePath());
+		File manifest = new File(root, MANIFEST);
+		Properties p = new Properties();
+		if (manifest.exists()) {
+			FileInputStream in = new FileInputStream(manifest);
+			try {
+				p.load(in);
+			} finally {
+				in.close();
+			}
+			if (!LAYOUT_VERSION.equals(p.getProperty("layout")))
+				throw new IOException("Unsupported cache layout " + p.getProperty("layout") + " in " + root.getAbsolutePath());
+		} else {
+			p.setProperty("layout", LAYOUT_VERSION);
+			FileOutputStream out = new FileOutputStream(manifest);
+			try {
+				p.store(out, "djatoka cache directory");
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the base directory of the cache
+	 * @return the base directory of the cache
+	 */
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	 * Returns true once the background index rebuild has completed
+	 * @return true once the background index rebuild has completed
+	 */
+	public boolean isRebuilt() {
+		return rebuilt;
+	}
+
+	/**
+	 * Returns the location of the named entry; the file may not exist.
+	 * @param name hex digest plus extension
+	 * @return location of the named entry
+	 */
+	public File getFile(String name) {
+		return new File(getShard(name), name);
+	}
+
+	/**
+	 * Returns the named entry if present on disk, otherwise null.
+	 * @param name hex digest plus extension
+	 * @return the named entry or null
+	 */
+	public File lookup(String name) {
+		File f = getFile(name);
+		if (f.isFile() && f.length() > 0)
+			return f;
+		return null;
+	}
+
+	/**
+	 * Creates a temporary file in the shard of the named entry, to be
+	 * populated and then passed to commit().
+	 * @param name hex digest plus extension
+	 * @return new, empty temporary file
+	 * @throws IOException
+	 */
+	public File createTempFile(String name) throws IOException {
+		File shard = getShard(name);
+		if (!shard.isDirectory() && !shard.mkdirs() && !shard.isDirectory())
+			throw new IOException("Unable to create cache shard " + shard.getAbsolutePath());
+		return File.createTempFile(name + "-", TMP_SUFFIX, shard);
+	}
+
+	/**
+	 * Moves a populated temporary file into place as the named entry. If the
+	 * entry was committed by another thread in the meantime, the temporary
+	 * file is discarded.
+	 * @param tmp populated temporary file from createTempFile()
+	 * @param name hex digest plus extension
+	 * @return the named entry
+	 * @throws IOException if the entry could not be moved into place
+	 */
+	public File commit(File tmp, String name) throws IOException {
+		File f = getFile(name);
+		if (!tmp.renameTo(f)) {
+			// Rename fails on some platforms if the target already exists
+			if (f.isFile() && f.length() > 0) {
+				tmp.delete();
+				return f;
+			}
+			f.delete();
+			if (!tmp.renameTo(f)) {
+				tmp.delete();
+				throw new IOException("Unable to commit cache entry " + f.getAbsolutePath());
+			}
+		}
+		return f;
+	}
+
+	/**
+	 * Scans the cache directory and adds each entry to the index, oldest
+	 * first, so that the index eviction policy sees entries in roughly the
+	 * order they were created. Entries already in the index are left as is.
+	 * Temporary files abandoned by a previous process are deleted.
+	 * @param index map of entry name to absolute path
+	 * @return the number of entries added
+	 */
+	public int rebuild(ConcurrentMap<String, String> index) {
+		long start = System.currentTimeMillis();
+		ArrayList<File> entries = new ArrayList<File>();
+		File[] l1 = root.listFiles();
+		if (l1 != null) {
+			for (File d1 : l1) {
+				File[] l2 = isShard(d1) ? d1.listFiles() : null;
+				if (l2 == null)
+					continue;
+				for (File d2 : l2) {
+					File[] files = isShard(d2) ? d2.listFiles() : null;
+					if (files == null)
+						continue;
+					for (File f : files) {
+						if (f.getName().endsWith(TMP_SUFFIX)) {
+							if (f.lastModified() < created)
+								f.delete();
+						} else if (f.isFile() && f.length() > 0) {
+							entries.add(f);
+						}
+					}
+				}
+			}
+		}
+		final int n = entries.size();
+		final long[] mtimes = new long[n];
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			mtimes[i] = entries.get(i).lastModified();
+			order[i] = Integer.valueOf(i);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				long d = mtimes[a.intValue()] - mtimes[b.intValue()];
+				return d < 0 ? -1 : (d > 0 ? 1 : 0);
+			}
+		});
+		int added = 0;
+		for (Integer i : order) {
+			File f = entries.get(i.intValue());
+			if (index.putIfAbsent(f.getName(), f.getAbsolutePath()) == null)
+				added++;
+		}
+		rebuilt = true;
+		logger.info("Rebuilt cache index from " + root.getAbsolutePath() + ": " + added + " of " + n + " entries in " + (System.currentTimeMillis() - start) + " ms");
+		return added;
+	}
+
+	/**
+	 * Runs rebuild() on a low priority daemon thread, so that requests may
+	 * be served while the index is populated.
+	 * @param index map of entry name to absolute path
+	 * @return the started thread
+	 */
+	public Thread rebuildInBackground(final ConcurrentMap<String, String> index) {
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					rebuild(index);
+				} catch (Throwable e) {
+					logger.error("Cache index rebuild failed: " + e.getMessage(), e);
+				}
+			}
+		}, "djatoka-cache-rebuild");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+		return t;
+	}
+
+	private static boolean isShard(File d) {
+		String n = d.getName();
+		return n.length() == 2 && Character.digit(n.charAt(0), 16) >= 0
+				&& Character.digit(n.charAt(1), 16) >= 0 && d.isDirectory();
+	}
+
+	private File getShard(String name) {
+		if (name.length() < 4)
+			return new File(root, "00" + File.separator + "00");
+		return new File(root, name.substring(0, 2) + File.separator + name.substring(2, 4));
+	}
+
+	/**
+	 * Returns the lower case hex representation of the provided bytes
+	 * @param b bytes to be encoded
+	 * @return the lower case hex representation
+	 */
+	public static String toHex(byte[] b) {
+		StringBuffer sb = new StringBuffer(b.length * 2);
+		for (int i = 0; i < b.length; i++) {
+			sb.append(Character.forDigit((b[i] >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b[i] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
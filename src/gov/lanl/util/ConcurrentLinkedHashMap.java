@@ -27,6 +27,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
@@ -53,6 +54,11 @@ import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
  *        The cost of reordering entries on the list during every access operation reduces
  *        the concurrency and performance characteristics of this policy.
  * </ul>
+ * <p>
+ * In addition to the entry count, the map may be bounded by a total weight, where each
+ * entry's weight is determined by a {@link Weigher} when it is inserted (e.g. the size of
+ * the file named by the value). When the weighted size exceeds the high watermark, entries
+ * are evicted until it falls to the low watermark.
  *
  * @author <a href="mailto:ben.manes@reardencommerce.com">Ben Manes</a>
  * @see    "http://code.google.com/p/concurrentlinkedhashmap/"
@@ -62,9 +68,14 @@ public final class ConcurrentLinkedHashMap<K, V> extends AbstractMap<K, V> imple
         public void onEviction(Object key, Object value) {}
     };
     private static final long serialVersionUID = 8350170357874293408L;
+    private static final int MAXIMUM_INITIAL_CAPACITY = 1 << 16;
     final ConcurrentMap<K, Node<K, V>> data;
     final EvictionListener<K, V> listener;
+    final Weigher<? super V> weigher;
     final AtomicInteger capacity;
+    final AtomicLong highWeight;
+    final AtomicLong lowWeight;
+    final AtomicLong weightedSize;
     final EvictionPolicy policy;
     final AtomicInteger length;
     final Node<K, V> sentinel;
@@ -118,7 +129,26 @@ public final class ConcurrentLinkedHashMap<K, V> extends AbstractMap<K, V> imple
      */
     public static <K, V> ConcurrentLinkedHashMap<K, V> create(EvictionPolicy policy, int maximumCapacity,
                                                               int concurrencyLevel, EvictionListener<K, V> listener) {
-        return new ConcurrentLinkedHashMap<K, V>(policy, maximumCapacity, concurrencyLevel, listener);
+        return new ConcurrentLinkedHashMap<K, V>(policy, maximumCapacity, concurrencyLevel, listener, null, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a map with the specified eviction policy, maximum capacity, eviction listener, and maximum
+     * weight, at the default concurrency level. The low watermark is initially equal to the maximum weight.
+     *
+     * @param policy          The eviction policy to apply when the size exceeds the maximum capacity.
+     * @param maximumCapacity The maximum capacity to coerces to. The size may exceed it temporarily.
+     * @param listener        The listener registered for notification when an entry is evicted.
+     * @param weigher         The weigher used to determine the weight of each value when it is inserted.
+     * @param maximumWeight   The maximum weighted size to coerces to. The weighted size may exceed it temporarily.
+     */
+    public static <K, V> ConcurrentLinkedHashMap<K, V> create(EvictionPolicy policy, int maximumCapacity,
+                                                              EvictionListener<K, V> listener,
+                                                              Weigher<? super V> weigher, long maximumWeight) {
+        if (weigher == null) {
+            throw new IllegalArgumentException();
+        }
+        return new ConcurrentLinkedHashMap<K, V>(policy, maximumCapacity, 16, listener, weigher, maximumWeight);
     }
 
     /**
@@ -129,14 +159,22 @@ public final class ConcurrentLinkedHashMap<K, V> extends AbstractMap<K, V> imple
      * @param concurrencyLevel The estimated number of concurrently updating threads. The implementation
      *                         performs internal sizing to try to accommodate this many threads.
      * @param listener         The listener registered for notification when an entry is evicted.
+     * @param weigher          The weigher used to determine the weight of each value, or null if unweighted.
+     * @param maximumWeight    The maximum weighted size to coerces to.
      */
-    private ConcurrentLinkedHashMap(EvictionPolicy policy, int maximumCapacity,
-                                    int concurrencyLevel, EvictionListener<K, V> listener) {
-        if ((policy == null) || (maximumCapacity < 0) || (concurrencyLevel <= 0) || (listener == null)) {
+    private ConcurrentLinkedHashMap(EvictionPolicy policy, int maximumCapacity, int concurrencyLevel,
+                                    EvictionListener<K, V> listener, Weigher<? super V> weigher, long maximumWeight) {
+        if ((policy == null) || (maximumCapacity < 0) || (concurrencyLevel <= 0) || (listener == null)
+                || (maximumWeight < 0)) {
             throw new IllegalArgumentException();
         }
-        this.data = new ConcurrentHashMap<K, Node<K, V>>(maximumCapacity, 0.75f, concurrencyLevel);
+        this.data = new ConcurrentHashMap<K, Node<K, V>>(Math.min(maximumCapacity, MAXIMUM_INITIAL_CAPACITY),
+                                                         0.75f, concurrencyLevel);
         this.capacity = new AtomicInteger(maximumCapacity);
+        this.weigher = weigher;
+        this.highWeight = new AtomicLong(maximumWeight);
+        this.lowWeight = new AtomicLong(maximumWeight);
+        this.weightedSize = new AtomicLong();
         this.length = new AtomicInteger();
         this.sentinel = new Node<K, V>();
         this.listener = listener;
@@ -152,6 +190,70 @@ public final class ConcurrentLinkedHashMap<K, V> extends AbstractMap<K, V> imple
         return size() > capacity();
     }
 
+    /**
+     * Sets the high and low watermarks of the weighted size and eagerly evicts entries until the weighted
+     * size is within the low watermark, if it exceeds the high watermark.
+     *
+     * @param high The weighted size at which eviction begins.
+     * @param low  The weighted size to which eviction reduces the map.
+     */
+    public void setWeightedCapacity(long high, long low) {
+        if ((high < 0) || (low < 0) || (low > high)) {
+            throw new IllegalArgumentException();
+        }
+        this.lowWeight.set(low);
+        this.highWeight.set(high);
+        while (evict()) { }
+    }
+
+    /**
+     * Retrieves the high watermark of the weighted size.
+     *
+     * @return The maximum weighted size.
+     */
+    public long weightedCapacity() {
+        return highWeight.get();
+    }
+
+    /**
+     * Retrieves the sum of the weights of the entries in the map, or the number of entries if the map
+     * is not weighted.
+     *
+     * @return The weighted size.
+     */
+    public long weightedSize() {
+        if (weigher == null) {
+            return size();
+        }
+        long size = weightedSize.get();
+        return (size >= 0) ? size : 0;
+    }
+
+    /**
+     * Evicts entries, in the order determined by the eviction policy, until at least the specified weight
+     * has been reclaimed or the map is empty. Used to release resources held by the values on demand,
+     * e.g. when the volume holding cached files runs low on space.
+     *
+     * @param weight The weight to reclaim; the number of entries if the map is not weighted.
+     * @return       The weight reclaimed.
+     */
+    public long trim(long weight) {
+        long reclaimed = 0;
+        while (reclaimed < weight) {
+            Node<K, V> node = sentinel.getNext();
+            if (node == sentinel) {
+                break;
+            } else if (policy.onEvict(this, node)) {
+                if (data.remove(node.getKey(), new Identity(node))) {
+                    reclaimed += (weigher == null) ? 1 : node.weight;
+                    removed(node);
+                    listener.onEviction(node.getKey(), node.getValue());
+                }
+            }
+        }
+        return reclaimed;
+    }
+
     /**
      * Sets the maximum capacity of the map and eagerly evicts entries until it shrinks to the appropriate size.
      *
@@ -216,21 +318,51 @@ public final class ConcurrentLinkedHashMap<K, V> extends AbstractMap<K, V> imple
      * Evicts a single entry if the map exceeds the maximum capacity.
      */
     private boolean evict() {
-        while (isOverflow()) {
+        // Once over the high watermark, drain to the low watermark
+        boolean drain = (weigher != null) && (weightedSize.get() > highWeight.get());
+        boolean evicted = false;
+        while (isOverflow() || (drain && (weightedSize.get() > lowWeight.get()))) {
             Node<K, V> node = sentinel.getNext();
             if (node == sentinel) {
-                return false;
+                return evicted;
             } else if (policy.onEvict(this, node)) {
                 // Attempt to remove the node if it's still available
                 if (data.remove(node.getKey(), new Identity(node))) {
-                    length.decrementAndGet();
-                    node.remove();
+                    removed(node);
                     listener.onEviction(node.getKey(), node.getValue());
-                    return true;
+                    if (!drain) {
+                        return true;
+                    }
+                    evicted = true;
                 }
             }
         }
-        return false;
+        return evicted;
+    }
+
+    /**
+     * Updates the size of the map and unlinks a node which was removed from the data store.
+     */
+    private void removed(Node<K, V> node) {
+        length.decrementAndGet();
+        if (weigher != null) {
+            weightedSize.addAndGet(-node.weight);
+        }
+        node.remove();
+    }
+
+    /**
+     * Determines the weight of a value, or zero if the map is not weighted.
+     */
+    private long weigh(V value) {
+        if (weigher == null) {
+            return 0;
+        }
+        long weight = weigher.weightOf(value);
+        if (weight < 0) {
+            throw new IllegalArgumentException();
+        }
+        return weight;
     }
 
     /**
@@ -254,8 +386,28 @@ public final class ConcurrentLinkedHashMap<K, V> extends AbstractMap<K, V> imple
         if (value == null) {
             throw new IllegalArgumentException();
         }
-        Node<K, V> old = putIfAbsent(new Node<K, V>(key, value, sentinel));
-        return (old == null) ? null : old.getAndSetValue(value);
+        Node<K, V> node = new Node<K, V>(key, value, sentinel);
+        node.weight = weigh(value);
+        Node<K, V> old = putIfAbsent(node);
+        if (old == null) {
+            return null;
+        }
+        V prior = old.getAndSetValue(value);
+        reweigh(old, node.weight);
+        return prior;
+    }
+
+    /**
+     * Adjusts the weighted size for a node whose value was replaced.
+     */
+    private void reweigh(Node<K, V> node, long weight) {
+        if (weigher != null) {
+            long delta = weight - node.weight;
+            node.weight = weight;
+            if ((delta != 0) && (weightedSize.addAndGet(delta) > highWeight.get())) {
+                evict();
+            }
+        }
     }
 
     /**
@@ -265,7 +417,9 @@ public final class ConcurrentLinkedHashMap<K, V> extends AbstractMap<K, V> imple
         if (value == null) {
             throw new IllegalArgumentException();
         }
-        Node<K, V> old = putIfAbsent(new Node<K, V>(key, value, sentinel));
+        Node<K, V> node = new Node<K, V>(key, value, sentinel);
+        node.weight = weigh(value);
+        Node<K, V> old = putIfAbsent(node);
         return (old == null) ? null : old.getValue();
     }
 
@@ -279,6 +433,9 @@ public final class ConcurrentLinkedHashMap<K, V> extends AbstractMap<K, V> imple
         Node<K, V> old = data.putIfAbsent(node.getKey(), node);
         if (old == null) {
             length.incrementAndGet();
+            if (weigher != null) {
+                weightedSize.addAndGet(node.weight);
+            }
             node.appendToTail();
             evict();
         } else {
@@ -296,8 +453,7 @@ public final class ConcurrentLinkedHashMap<K, V> extends AbstractMap<K, V> imple
         if (node == null) {
             return null;
         }
-        length.decrementAndGet();
-        node.remove();
+        removed(node);
         return node.getValue();
     }
 
@@ -307,8 +463,7 @@ public final class ConcurrentLinkedHashMap<K, V> extends AbstractMap<K, V> imple
     public boolean remove(Object key, Object value) {
         Node<K, V> node = data.get(key);
         if ((node != null) && node.value.equals(value) && data.remove(key, new Identity(node))) {
-            length.decrementAndGet();
-            node.remove();
+            removed(node);
             return true;
         }
         return false;
@@ -322,7 +477,12 @@ public final class ConcurrentLinkedHashMap<K, V> extends AbstractMap<K, V> imple
             throw new IllegalArgumentException();
         }
         Node<K, V> node = data.get(key);
-        return (node == null) ? null : node.getAndSetValue(value);
+        if (node == null) {
+            return null;
+        }
+        V prior = node.getAndSetValue(value);
+        reweigh(node, weigh(value));
+        return prior;
     }
 
     /**
@@ -333,7 +493,11 @@ public final class ConcurrentLinkedHashMap<K, V> extends AbstractMap<K, V> imple
             throw new IllegalArgumentException();
         }
         Node<K, V> node = data.get(key);
-        return (node == null) ? false : node.casValue(oldValue, newValue);
+        if ((node == null) || !node.casValue(oldValue, newValue)) {
+            return false;
+        }
+        reweigh(node, weigh(newValue));
+        return true;
     }
 
     /**
@@ -374,6 +538,21 @@ public final class ConcurrentLinkedHashMap<K, V> extends AbstractMap<K, V> imple
         void onEviction(K key, V value);
     }
 
+    /**
+     * Determines the weight of a value, such as the number of bytes it represents. The weight of an entry
+     * is taken when it is inserted or its value replaced.
+     */
+    public interface Weigher<V> {
+
+        /**
+         * Returns the weight of the value, which must be non-negative.
+         *
+         * @param value The value to weigh.
+         * @return      The weight of the value.
+         */
+        long weightOf(V value);
+    }
+
     /**
      * The replacement policy to apply to determine which entry to discard when the capacity has been reached.
      */
@@ -458,6 +637,7 @@ public final class ConcurrentLinkedHashMap<K, V> extends AbstractMap<K, V> imple
         private final Node<K, V> sentinel;
 
         private volatile V value;
+        private volatile long weight;
         private volatile boolean marked;
         private volatile Node<K, V> prev;
         private volatile Node<K, V> next;
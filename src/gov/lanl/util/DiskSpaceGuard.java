@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.util;
+
+import java.io.File;
+import java.lang.reflect.Method;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps a minimum amount of free space on the volume holding a file cache.
+ * Before a new file is written, ensure() evicts entries from the cache if
+ * the volume is running low, so that traffic spikes do not fill the disk.
+ * The cache must be weighted by file size (see FileSizeWeigher).
+ * <p>
+ * This tree targets Java 5, which cannot report free space; the free space
+ * is read with File.getUsableSpace() when running on Java 6 or later, and
+ * the guard is inactive otherwise.
+ * @author agent
+ *
+ */
+public class DiskSpaceGuard {
+	static Logger logger = Logger.getLogger(DiskSpaceGuard.class);
+	private static final Method USABLE_SPACE = getUsableSpaceMethod();
+	private final File volume;
+	private final long minFreeBytes;
+	private final ConcurrentLinkedHashMap<?, ?> cache;
+
+	/**
+	 * Creates a guard for the volume containing the provided directory
+	 * @param volume directory on the volume holding the cached files
+	 * @param minFreeBytes minimum number of bytes to be kept free
+	 * @param cache file size weighted cache holding the files
+	 */
+	public DiskSpaceGuard(File volume, long minFreeBytes, ConcurrentLinkedHashMap<?, ?> cache) {
+		this.volume = volume;
+		this.minFreeBytes = minFreeBytes;
+		this.cache = cache;
+		if (USABLE_SPACE == null && minFreeBytes > 0)
+			logger.warn("Free space is not available on this JVM, not guarding " + volume.getAbsolutePath());
+	}
+
+	/**
+	 * Evicts cache entries, if needed, so that the requested number of bytes
+	 * may be written while keeping the minimum free space.
+	 * @param bytes number of bytes about to be written
+	 * @return false if the space could not be made available
+	 */
+	public boolean ensure(long bytes) {
+		if (minFreeBytes <= 0 || USABLE_SPACE == null)
+			return true;
+		long deficit = minFreeBytes + bytes - getUsableSpace();
+		if (deficit <= 0)
+			return true;
+		long reclaimed = cache.trim(deficit);
+		logger.warn("Low disk space on " + volume.getAbsolutePath() + ", evicted " + reclaimed + " of " + deficit + " bytes");
+		return getUsableSpace() >= minFreeBytes + bytes;
+	}
+
+	/**
+	 * Returns the number of bytes available on the volume, or Long.MAX_VALUE
+	 * if it cannot be determined.
+	 */
+	private long getUsableSpace() {
+		try {
+			return ((Long) USABLE_SPACE.invoke(volume)).longValue();
+		} catch (Exception e) {
+			logger.debug("Unable to read free space of " + volume.getAbsolutePath() + ": " + e.getMessage());
+			return Long.MAX_VALUE;
+		}
+	}
+
+	private static Method getUsableSpaceMethod() {
+		try {
+			return File.class.getMethod("getUsableSpace");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the minimum number of bytes kept free
+	 * @return the minimum number of bytes kept free
+	 */
+	public long getMinFreeBytes() {
+		return minFreeBytes;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * FileInputStream which retains the File it reads. Allows a consumer, such 
+ * as a servlet, to recognize a file backed response and hand the file to
+ * the container (e.g. Tomcat sendfile support), which sends it without 
+ * copying it through the java heap.
+ * <p>
+ * The container reopens the file by path after the request completes, so 
+ * files which may be deleted meanwhile (e.g. evicted from a cache) are 
+ * marked evictable and must be sent from this stream's open channel, 
+ * which remains readable after the file is deleted.
+ * @author agent
+ *
+ */
+public class FileResponseInputStream extends FileInputStream {
+	private final File file;
+	private final long length;
+	private final boolean evictable;
+
+	/**
+	 * Opens the provided file for reading
+	 * @param file file to be read
+	 * @throws IOException
+	 */
+	public FileResponseInputStream(File file) throws IOException {
+		this(file, false);
+	}
+
+	/**
+	 * Opens the provided file for reading
+	 * @param file file to be read
+	 * @param evictable true if the file may be deleted while it is being sent
+	 * @throws IOException
+	 */
+	public FileResponseInputStream(File file, boolean evictable) throws IOException {
+		super(file);
+		this.file = file;
+		this.length = getChannel().size();
+		this.evictable = evictable;
+	}
+
+	/**
+	 * Returns the file being read
+	 * @return the file being read
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the length of the file when it was opened
+	 * @return the length of the file in bytes
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns true if the file may be deleted while it is being sent, in 
+	 * which case it must not be handed to the container by path
+	 * @return true if the file may be deleted while it is being sent
+	 */
+	public boolean isEvictable() {
+		return evictable;
+	}
+
+	/**
+	 * Transfers the file to the provided stream using FileChannel.transferTo.
+	 * The stream is wrapped in a channel which copies through a heap buffer, 
+	 * so unlike container sendfile this is not zero-copy; it avoids reading 
+	 * the whole file into a byte[] and an intermediate copy loop.
+	 * @param out destination of the file
+	 * @return number of bytes transferred
+	 * @throws IOException
+	 */
+	public long transferTo(OutputStream out) throws IOException {
+		FileChannel in = getChannel();
+		WritableByteChannel ch = Channels.newChannel(out);
+		long pos = 0;
+		while (pos < length) {
+			long n = in.transferTo(pos, length - pos, ch);
+			if (n <= 0)
+				break;
+			pos += n;
+		}
+		return pos;
+	}
+}
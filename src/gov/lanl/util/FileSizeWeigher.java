@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.util;
+
+import java.io.File;
+
+/**
+ * Weighs a cache entry by the size in bytes of the file named by its value.
+ * Used with ConcurrentEvictionFileDelete to bound file caches by disk usage
+ * rather than by the number of files.
+ * @author agent
+ *
+ */
+public class FileSizeWeigher implements ConcurrentLinkedHashMap.Weigher<String> {
+
+	public long weightOf(String value) {
+		return new File(value).length();
+	}
+}
@@ -23,6 +23,7 @@
 
 package gov.lanl.util;
 
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
@@ -38,9 +39,13 @@ import java.util.TimeZone;
 public class HttpDate {
     public final static Locale LOCALE_US = Locale.US;
 	public final static TimeZone GMT_ZONE = TimeZone.getTimeZone("GMT");
-    public final static String RFC1123_PATTERN = "EEE, dd MMM yyyyy HH:mm:ss z";
+    public final static String RFC1123_PATTERN = "EEE, dd MMM yyyy HH:mm:ss z";
     public final static SimpleDateFormat rfc1123Format = new SimpleDateFormat(RFC1123_PATTERN, LOCALE_US);
     
+    static {
+    	rfc1123Format.setTimeZone(GMT_ZONE);
+    }
+    
     public static String getHttpDate() {
     	Calendar calendar = new GregorianCalendar(GMT_ZONE, LOCALE_US);
         return getHttpDate(calendar, new Date(System.currentTimeMillis()));
@@ -48,6 +53,35 @@ public class HttpDate {
     
     public static String getHttpDate(Calendar calendar, Date time) {
         calendar.setTime(time);
-        return rfc1123Format.format(calendar.getTime());
+        // SimpleDateFormat is not thread safe
+        synchronized (rfc1123Format) {
+        	return rfc1123Format.format(calendar.getTime());
+        }
+    }
+    
+    /**
+     * Returns the RFC 1123 formatted date of the provided time
+     * @param time milliseconds since the epoch
+     * @return RFC 1123 formatted date
+     */
+    public static String getHttpDate(long time) {
+    	return getHttpDate(new GregorianCalendar(GMT_ZONE, LOCALE_US), new Date(time));
+    }
+    
+    /**
+     * Parses an RFC 1123 formatted date
+     * @param date RFC 1123 formatted date
+     * @return milliseconds since the epoch, or -1 if the date is invalid
+     */
+    public static long parseHttpDate(String date) {
+    	if (date == null)
+    		return -1;
+    	try {
+    		synchronized (rfc1123Format) {
+    			return rfc1123Format.parse(date.trim()).getTime();
+    		}
+    	} catch (ParseException e) {
+    		return -1;
+    	}
     }
 }
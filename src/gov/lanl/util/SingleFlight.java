@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package gov.lanl.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent calls for the same key. The first caller for a key
+ * (the leader) runs the task; callers arriving while it is in flight wait
+ * for the leader's result instead of repeating the work. A failure in the
+ * leader is propagated to every waiter. Once the leader completes the key
+ * is released, so later calls run the task again.
+ * @author agent
+ *
+ */
+public class SingleFlight<K, V> {
+	private final ConcurrentHashMap<K, Call<V>> calls = new ConcurrentHashMap<K, Call<V>>();
+	private final AtomicLong executed = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+
+	/**
+	 * Runs the task for the key, or waits up to timeout milliseconds for an
+	 * identical call already in flight.
+	 * @param key identifies equivalent calls
+	 * @param task work to be performed by the leader
+	 * @param timeout maximum milliseconds a waiter blocks for the leader
+	 * @return the leader's result
+	 * @throws TimeoutException if the leader did not complete in time
+	 * @throws Exception the exception thrown by the leader's task
+	 */
+	public V execute(K key, Callable<V> task, long timeout) throws Exception {
+		Call<V> call = new Call<V>();
+		Call<V> inflight = calls.putIfAbsent(key, call);
+		if (inflight != null) {
+			coalesced.incrementAndGet();
+			return inflight.get(timeout);
+		}
+		executed.incrementAndGet();
+		try {
+			V v = task.call();
+			call.set(v);
+			return v;
+		} catch (Exception e) {
+			call.setException(e);
+			throw e;
+		} catch (Error e) {
+			call.setException(e);
+			throw e;
+		} finally {
+			calls.remove(key, call);
+		}
+	}
+
+	/**
+	 * Returns the number of calls currently in flight
+	 * @return the number of calls currently in flight
+	 */
+	public int getInFlightCount() {
+		return calls.size();
+	}
+
+	/**
+	 * Returns the number of calls which ran the task
+	 * @return the number of calls which ran the task
+	 */
+	public long getExecutedCount() {
+		return executed.get();
+	}
+
+	/**
+	 * Returns the number of calls served by waiting on another call
+	 * @return the number of calls served by waiting on another call
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Returns the number of waiters that gave up on the leader
+	 * @return the number of waiters that gave up on the leader
+	 */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("{");
+		sb.append("\"inFlight\": \"" + calls.size() + "\", ");
+		sb.append("\"executed\": \"" + executed.get() + "\", ");
+		sb.append("\"coalesced\": \"" + coalesced.get() + "\", ");
+		sb.append("\"timeouts\": \"" + timeouts.get() + "\" ");
+		sb.append("}");
+		return sb.toString();
+	}
+
+	/**
+	 * Result holder shared between the leader and its waiters.
+	 */
+	private final class Call<T> {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile T value;
+		private volatile Throwable error;
+
+		void set(T value) {
+			this.value = value;
+			done.countDown();
+		}
+
+		void setException(Throwable error) {
+			this.error = error;
+			done.countDown();
+		}
+
+		T get(long timeout) throws Exception {
+			if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+				timeouts.incrementAndGet();
+				throw new TimeoutException("Timed out after " + timeout + " ms waiting for an identical request in progress");
+			}
+			if (error instanceof Exception)
+				throw (Exception) error;
+			if (error instanceof Error)
+				throw (Error) error;
+			return value;
+		}
+	}
+}
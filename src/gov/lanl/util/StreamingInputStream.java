@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2026  agent
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * InputStream for content that is produced on demand. A consumer aware of
+ * this class (e.g. the OpenURL servlet) calls writeTo() with its output 
+ * stream, so the content is written directly to the client as it is 
+ * produced rather than buffered beforehand; the length is not known in 
+ * advance. Other consumers may read the stream as usual, in which case 
+ * the content is produced into memory on the first read.
+ * @author agent
+ *
+ */
+public abstract class StreamingInputStream extends InputStream {
+	private InputStream buffered;
+
+	/**
+	 * Produces the content, writing it to the provided stream. Called at 
+	 * most once; the stream is not closed.
+	 * @param out destination of the content
+	 * @throws IOException
+	 */
+	public abstract void writeTo(OutputStream out) throws IOException;
+
+	private InputStream getBuffered() throws IOException {
+		if (buffered == null) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			writeTo(baos);
+			buffered = new ByteArrayInputStream(baos.toByteArray());
+		}
+		return buffered;
+	}
+
+	public int read() throws IOException {
+		return getBuffered().read();
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		return getBuffered().read(b, off, len);
+	}
+
+	public int available() throws IOException {
+		return (buffered == null) ? 0 : buffered.available();
+	}
+
+	/**
+	 * Wraps a failure to produce the content as an IOException
+	 * @param e cause of the failure
+	 * @return IOException with the provided cause
+	 */
+	protected static IOException toIOException(Throwable e) {
+		if (e instanceof IOException)
+			return (IOException) e;
+		IOException ioe = new IOException(e.getMessage());
+		ioe.initCause(e);
+		return ioe;
+	}
+}